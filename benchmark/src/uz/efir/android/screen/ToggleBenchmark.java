@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.provider.Settings;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Runs what a widget tap does, toggle, read back and compute the widget
+ * state, against {@link InMemorySettingsStore} on a plain JVM.
+ * For every button it prints the latency and the bytes allocated per action
+ * on the tapping thread, and the settings store calls an action costs once
+ * its write has landed and the change notification was handled.
+ * Exits with status 1 if an action needs more store calls than budgeted,
+ * so a regression in provider round trips fails the build.
+ *
+ * Run with "gradle -p benchmark run".
+ */
+final class ToggleBenchmark {
+    private static final int WARMUP_ACTIONS = 20000;
+    private static final int TIMED_ACTIONS = 200000;
+    private static final int COUNTED_ACTIONS = 200;
+    /**
+     * Store calls one action may cost, the provider round trips of a tap:
+     * one snapshot load, which is one read per table, and one write.
+     */
+    private static final double MAX_READS_PER_ACTION = 2;
+    private static final double MAX_WRITES_PER_ACTION = 1;
+    /** The reload after a change notification runs in the background, never on a tap */
+    private static final double MAX_TAP_READS_PER_ACTION = 0;
+
+    private static final int[] BUTTONS = {
+        WidgetState.BUTTON_NEVER_TIMEOUT, WidgetState.BUTTON_STAY_ON, WidgetState.BUTTON_PRESET
+    };
+    private static final String[] BUTTON_NAMES = {
+        "never time out", "stay on", "preset"
+    };
+
+    /** Keeps the computed states alive so the JIT can not drop the work */
+    private static volatile int sSink;
+
+    private ToggleBenchmark() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        PerfStats.disableTracing();
+        boolean withinBudget = true;
+        for (int i = 0; i < BUTTONS.length; i++) {
+            withinBudget &= run(BUTTONS[i], BUTTON_NAMES[i]);
+        }
+        if (!withinBudget) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Benchmarks one button.
+     *
+     * @return false if the button costs more store calls than budgeted.
+     */
+    private static boolean run(int button, String name) throws InterruptedException {
+        InMemorySettingsStore store = new InMemorySettingsStore();
+        store.putInt(SettingsStore.TABLE_SYSTEM, Settings.System.SCREEN_OFF_TIMEOUT, 60000);
+        store.putInt(SettingsStore.TABLE_GLOBAL, Settings.System.STAY_ON_WHILE_PLUGGED_IN, 0);
+        // A current device with every permission granted
+        SettingsCapabilities capabilities = new SettingsCapabilities(true, true, true);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        SettingsCache cache = new SettingsCache(store, capabilities,
+                new SettingsWriter(store, capabilities, executor, 0 /* no merging */));
+        PresetStore presets = new PresetStore(new MemorySharedPreferences(), store);
+
+        try {
+            for (int i = 0; i < WARMUP_ACTIONS; i++) {
+                sSink += tap(cache, presets, button);
+            }
+            awaitWrites(cache);
+
+            long[] samples = new long[TIMED_ACTIONS];
+            long allocated = getAllocatedBytes();
+            for (int i = 0; i < TIMED_ACTIONS; i++) {
+                long start = System.nanoTime();
+                sSink += tap(cache, presets, button);
+                samples[i] = System.nanoTime() - start;
+            }
+            allocated = getAllocatedBytes() - allocated;
+            awaitWrites(cache);
+
+            store.resetCounts();
+            int tapReads = 0;
+            for (int i = 0; i < COUNTED_ACTIONS; i++) {
+                int reads = store.getReadCount();
+                sSink += tap(cache, presets, button);
+                tapReads += store.getReadCount() - reads;
+                awaitWrites(cache);
+                // What the ContentObserver does once the write reached the provider
+                cache.onRowsChanged();
+                awaitWrites(cache);
+            }
+            double readsPerAction = (double) store.getReadCount() / COUNTED_ACTIONS;
+            double writesPerAction = (double) store.getWriteCount() / COUNTED_ACTIONS;
+            double tapReadsPerAction = (double) tapReads / COUNTED_ACTIONS;
+
+            Arrays.sort(samples);
+            long total = 0;
+            for (long sample : samples) {
+                total += sample;
+            }
+            System.out.println(name + ": " + total / TIMED_ACTIONS + " ns/action (p50 "
+                    + samples[TIMED_ACTIONS / 2] + ", p99 " + samples[TIMED_ACTIONS * 99 / 100]
+                    + "), " + (allocated < 0 ? "n/a" : String.valueOf(allocated / TIMED_ACTIONS))
+                    + " bytes/action");
+            System.out.println(String.format("  store calls per action: %.2f reads"
+                    + " (%.2f on the tap path), %.2f writes",
+                    readsPerAction, tapReadsPerAction, writesPerAction));
+
+            if (readsPerAction > MAX_READS_PER_ACTION || writesPerAction > MAX_WRITES_PER_ACTION
+                    || tapReadsPerAction > MAX_TAP_READS_PER_ACTION) {
+                System.out.println("  over budget: " + MAX_READS_PER_ACTION + " reads ("
+                        + MAX_TAP_READS_PER_ACTION + " on the tap path), "
+                        + MAX_WRITES_PER_ACTION + " writes");
+                return false;
+            }
+            return true;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * What a widget tap does before RemoteViews are built.
+     */
+    private static int tap(SettingsCache cache, PresetStore presets, int button) {
+        WidgetState.toggleMode(cache, presets, button);
+        return WidgetState.getState(cache.get(), presets);
+    }
+
+    /**
+     * Waits until every queued write, and everything queued before, ran on the writer thread.
+     */
+    private static void awaitWrites(SettingsCache cache) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        cache.runAfterWrites(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, -1 if the JVM can not tell.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import java.util.HashMap;
+
+/**
+ * Per-app screen timeout rules, prebuilt into a hash map so matching the
+ * foreground app costs the same however many rules there are.
+ *
+ * Rules are written as "package=value" separated by ';', for example
+ * "com.example.navigation=never; com.example.reader=10". The value is in
+ * minutes, or "never".
+ */
+final class AppTimeoutRules {
+    /** Returned by {@link #valueFor(String)} for apps without a rule. */
+    static final int NO_RULE = Integer.MIN_VALUE;
+
+    static final AppTimeoutRules EMPTY = new AppTimeoutRules(new HashMap<String, Integer>());
+
+    private final HashMap<String, Integer> mRules;
+
+    private AppTimeoutRules(HashMap<String, Integer> rules) {
+        mRules = rules;
+    }
+
+    /**
+     * Parses the textual form described in the class comment.
+     *
+     * @throws IllegalArgumentException if the text is not valid.
+     */
+    static AppTimeoutRules parse(String spec) {
+        if (spec == null || spec.trim().length() == 0) {
+            return EMPTY;
+        }
+
+        HashMap<String, Integer> rules = new HashMap<String, Integer>();
+        for (String ruleSpec : spec.split(";")) {
+            ruleSpec = ruleSpec.trim();
+            if (ruleSpec.length() == 0) {
+                continue;
+            }
+            int equals = ruleSpec.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Bad rule: " + ruleSpec);
+            }
+            String packageName = ruleSpec.substring(0, equals).trim();
+            String valueSpec = ruleSpec.substring(equals + 1).trim();
+            long value;
+            if ("never".equalsIgnoreCase(valueSpec)) {
+                value = -1;
+            } else {
+                try {
+                    value = Integer.parseInt(valueSpec) * 60 * 1000L;
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("Bad value: " + valueSpec);
+                }
+                if (value <= 0 || value > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Bad value: " + valueSpec);
+                }
+            }
+            if (!rules.containsKey(packageName)) {
+                rules.put(packageName, (int) value);
+            }
+        }
+        return new AppTimeoutRules(rules);
+    }
+
+    boolean isEmpty() {
+        return mRules.isEmpty();
+    }
+
+    /**
+     * @return the timeout for the app, or {@link #NO_RULE}.
+     */
+    int valueFor(String packageName) {
+        Integer value = mRules.get(packageName);
+        return value == null ? NO_RULE : value;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * Shortens the screen timeout when the battery runs low and restores the
+ * saved one once charging starts.
+ * Only wakes up on battery low/okay, power connected/disconnected and
+ * unlock; the battery level is then read once from the sticky
+ * ACTION_BATTERY_CHANGED broadcast instead of listening to it.
+ * The receiver is disabled in the manifest and only enabled while thresholds
+ * are set or a shortened timeout still has to be restored, see
+ * {@link #updateEnabled}.
+ */
+public class BatteryReceiver extends BroadcastReceiver {
+    private static final String TAG = "BatteryReceiver";
+    static final String KEY_BATTERY_THRESHOLDS = "battery_thresholds";
+    private static final String KEY_BATTERY_ACTIVE = "battery_active";
+    /** The timeout the policy wrote, restored only while it is still in place */
+    private static final String KEY_BATTERY_VALUE = "battery_value";
+
+    // Last parsed thresholds, parsing again only when the text changes
+    private static String sSpec;
+    private static BatteryTimeoutPolicy sPolicy = BatteryTimeoutPolicy.EMPTY;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!applyPolicy(context, Intent.ACTION_POWER_CONNECTED.equals(intent.getAction()))) {
+            return;
+        }
+        WidgetProvider.updateWidget(context);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Keep the process alive until the queued write reaches the provider
+            final PendingResult result = goAsync();
+            SettingsCache.getInstance(context).runAfterWrites(new Runnable() {
+                @Override
+                public void run() {
+                    result.finish();
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets the timeout for the current battery level, or restores the saved
+     * one if the battery is charging or above every threshold and the
+     * timeout is still the one the policy set.
+     *
+     * @param context   The Context
+     * @param charging   true if power is known to be connected
+     * @return true if the timeout was changed.
+     */
+    static boolean applyPolicy(Context context, boolean charging) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        BatteryTimeoutPolicy policy = getPolicy(prefs.getString(KEY_BATTERY_THRESHOLDS, null));
+        boolean active = prefs.getBoolean(KEY_BATTERY_ACTIVE, false);
+        if (policy.isEmpty() && !active) {
+            // Nothing to do, and no reason to be woken up again
+            setEnabled(context, false);
+            return false;
+        }
+
+        int value = BatteryTimeoutPolicy.NO_RULE;
+        if (!charging) {
+            // Null receiver: just read the last sticky broadcast, nothing stays registered
+            Intent battery = context.getApplicationContext().registerReceiver(null,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery != null) {
+                int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+                charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+                if (!charging && level >= 0 && scale > 0) {
+                    value = policy.valueFor(level * 100 / scale);
+                }
+            }
+        }
+
+        if (value == BatteryTimeoutPolicy.NO_RULE && !active) {
+            // Above every threshold and nothing to restore, the settings are not needed
+            return false;
+        }
+
+        SettingsCache cache = SettingsCache.getInstance(context);
+        int current = cache.get().screenOffTimeout;
+        boolean changed = false;
+        if (value != BatteryTimeoutPolicy.NO_RULE) {
+            SharedPreferences.Editor editor = prefs.edit().putBoolean(KEY_BATTERY_ACTIVE, true);
+            // Only ever shorten the timeout, never lengthen it
+            if (current < 0 || current > value) {
+                Log.d(TAG, "Battery low, setting timeout " + value);
+                changed = cache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, value);
+                if (changed) {
+                    editor.putInt(KEY_BATTERY_VALUE, value);
+                }
+            }
+            if (changed || !active) {
+                editor.commit();
+            }
+        } else {
+            // Restore only the policy's own value, a change made meanwhile
+            // by hand or by another feature wins
+            if (current == prefs.getInt(KEY_BATTERY_VALUE, SettingsCache.NOT_FOUND)) {
+                int saved = PresetStore.getInstance(context).getSavedTimeout();
+                if (current != saved) {
+                    changed = cache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, saved);
+                }
+            }
+            prefs.edit().putBoolean(KEY_BATTERY_ACTIVE, false).remove(KEY_BATTERY_VALUE).commit();
+            if (policy.isEmpty()) {
+                // The thresholds were removed while active, this was the last restore
+                setEnabled(context, false);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Enables the receiver if the given thresholds are set or a shortened
+     * timeout has yet to be restored, disables it otherwise.
+     *
+     * @param context   The Context
+     * @param spec   The thresholds about to be saved
+     */
+    static void updateEnabled(Context context, String spec) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        setEnabled(context, !getPolicy(spec).isEmpty() || prefs.getBoolean(KEY_BATTERY_ACTIVE, false));
+    }
+
+    private static void setEnabled(Context context, boolean enabled) {
+        PackageManager pm = context.getPackageManager();
+        if (pm != null) {
+            pm.setComponentEnabledSetting(new ComponentName(context, BatteryReceiver.class),
+                    enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                            : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                    PackageManager.DONT_KILL_APP);
+        }
+    }
+
+    static synchronized BatteryTimeoutPolicy getPolicy(String spec) {
+        if (spec == null ? sSpec != null : !spec.equals(sSpec)) {
+            try {
+                sPolicy = BatteryTimeoutPolicy.parse(spec);
+            } catch (IllegalArgumentException iae) {
+                Log.w(TAG, "Ignoring battery thresholds: " + iae.getMessage());
+                sPolicy = BatteryTimeoutPolicy.EMPTY;
+            }
+            sSpec = spec;
+        }
+        return sPolicy;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import java.util.Arrays;
+
+/**
+ * Battery level thresholds with the timeout to use at or below each of them.
+ *
+ * Thresholds are written as "percent=seconds" separated by ';', for example
+ * "20=60; 10=30" uses 60 seconds at 20% and below, and 30 seconds at 10% and below.
+ */
+final class BatteryTimeoutPolicy {
+    /** Returned by {@link #valueFor(int)} when the level is above every threshold. */
+    static final int NO_RULE = Integer.MIN_VALUE;
+
+    static final BatteryTimeoutPolicy EMPTY = new BatteryTimeoutPolicy(new int[0], new int[0]);
+
+    /** Ascending battery levels in percent. */
+    private final int[] mLevels;
+    /** Timeout for the matching level, in milliseconds. */
+    private final int[] mValues;
+
+    private BatteryTimeoutPolicy(int[] levels, int[] values) {
+        mLevels = levels;
+        mValues = values;
+    }
+
+    /**
+     * Parses the textual form described in the class comment.
+     *
+     * @throws IllegalArgumentException if the text is not valid.
+     */
+    static BatteryTimeoutPolicy parse(String spec) {
+        if (spec == null || spec.trim().length() == 0) {
+            return EMPTY;
+        }
+
+        String[] thresholdSpecs = spec.split(";");
+        long[] packed = new long[thresholdSpecs.length];
+        int count = 0;
+        for (String thresholdSpec : thresholdSpecs) {
+            thresholdSpec = thresholdSpec.trim();
+            if (thresholdSpec.length() == 0) {
+                continue;
+            }
+            int equals = thresholdSpec.indexOf('=');
+            int level;
+            int seconds;
+            try {
+                level = Integer.parseInt(thresholdSpec.substring(0, Math.max(equals, 0)).trim());
+                seconds = Integer.parseInt(thresholdSpec.substring(equals + 1).trim());
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Bad threshold: " + thresholdSpec);
+            }
+            // The timeout is an int of milliseconds, and has to fit the low half of packed
+            if (level <= 0 || level > 100 || seconds <= 0 || seconds > Integer.MAX_VALUE / 1000) {
+                throw new IllegalArgumentException("Bad threshold: " + thresholdSpec);
+            }
+            // Sort by level, keep the value along with it
+            packed[count++] = ((long) level << 32) | (seconds * 1000L);
+        }
+        Arrays.sort(packed, 0, count);
+
+        int[] levels = new int[count];
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            levels[i] = (int) (packed[i] >>> 32);
+            values[i] = (int) packed[i];
+        }
+        return new BatteryTimeoutPolicy(levels, values);
+    }
+
+    boolean isEmpty() {
+        return mLevels.length == 0;
+    }
+
+    /**
+     * @return the timeout for the battery level in percent, or {@link #NO_RULE}.
+     */
+    int valueFor(int level) {
+        // The lowest threshold the level is still at or below wins
+        for (int i = 0; i < mLevels.length; i++) {
+            if (level <= mLevels[i]) {
+                return mValues[i];
+            }
+        }
+        return NO_RULE;
+    }
+}
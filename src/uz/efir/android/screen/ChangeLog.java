@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.content.Context;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only log of the settings changes, in a memory-mapped ring file.
+ * Every record has the same size, so appending is a few stores into the
+ * mapping and the oldest records are simply overwritten.
+ * The statistics (time spent at each timeout and with stay-on) are kept in
+ * the file header and updated with every record, so reading them never
+ * walks the log, however old it is.
+ *
+ * Records are appended on the settings writer thread, for SOFFT's own writes,
+ * see {@link SettingsWriter.WriteListener}, and for every loaded snapshot that
+ * differs from the state in the header, see {@link SettingsCache.LoadListener}.
+ * The first snapshot seeds the header, changes made outside SOFFT are
+ * recorded once the cache reloads.
+ */
+final class ChangeLog implements SettingsWriter.WriteListener, SettingsCache.LoadListener {
+    private static final String TAG = "ChangeLog";
+    private static final String FILE_NAME = "changes.log";
+
+    static final int FIELD_TIMEOUT = 0;
+    static final int FIELD_STAY_ON = 1;
+
+    private static final int MAGIC = 0x534f464c; // "SOFL"
+    private static final int VERSION = 1;
+    /** Records kept before the oldest is overwritten, about two years of heavy use */
+    private static final int CAPACITY = 4096;
+    /** long time, int field, int value */
+    private static final int RECORD_SIZE = 16;
+    /** Distinct timeouts with their own time counter, the rest go to "other" */
+    private static final int TIMEOUT_SLOTS = 16;
+
+    // Header layout
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_HEAD = 12;
+    private static final int OFFSET_COUNT = 16;
+    private static final int OFFSET_LAST_TIME = 24;
+    private static final int OFFSET_TIMEOUT = 32;
+    private static final int OFFSET_STAY_ON = 36;
+    private static final int OFFSET_STAY_ON_MILLIS = 40;
+    private static final int OFFSET_OTHER_MILLIS = 48;
+    private static final int OFFSET_SLOTS = 64;
+    /** int timeout, int in use, long millis */
+    private static final int SLOT_SIZE = 16;
+    private static final int HEADER_SIZE = 512;
+    private static final int FILE_SIZE = HEADER_SIZE + CAPACITY * RECORD_SIZE;
+
+    private static ChangeLog sInstance;
+
+    private final Context mContext;
+    private File mFile;
+    private MappedByteBuffer mBuffer;
+    private boolean mOpenFailed;
+
+    /**
+     * Totals computed from the header, a copy that does not change.
+     */
+    static final class Stats {
+        /** Number of records ever appended, including overwritten ones */
+        long count;
+        long stayOnMillis;
+        long otherMillis;
+        /** Timeouts that have a counter, in slot order, -1 for never */
+        int[] timeouts;
+        long[] timeoutMillis;
+    }
+
+    private ChangeLog(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Creates a log in the given file, for tests.
+     */
+    ChangeLog(File file) {
+        mContext = null;
+        mFile = file;
+    }
+
+    static synchronized ChangeLog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ChangeLog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Maps the file on first use, starting over if it is missing or not understood.
+     *
+     * @return false if the log can not be used.
+     */
+    private boolean open() {
+        if (mBuffer != null) {
+            return true;
+        }
+        if (mOpenFailed) {
+            return false;
+        }
+        RandomAccessFile file = null;
+        try {
+            if (mFile == null) {
+                mFile = new File(mContext.getFilesDir(), FILE_NAME);
+            }
+            file = new RandomAccessFile(mFile, "rw");
+            if (file.length() != FILE_SIZE) {
+                file.setLength(FILE_SIZE);
+            }
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Can not map " + FILE_NAME, ioe);
+            mOpenFailed = true;
+            return false;
+        } finally {
+            if (file != null) {
+                try {
+                    // The mapping stays valid after the file is closed
+                    file.close();
+                } catch (IOException ioe) {
+                    // Nothing to do
+                }
+            }
+        }
+
+        if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC || mBuffer.getInt(OFFSET_VERSION) != VERSION
+                || mBuffer.getInt(OFFSET_CAPACITY) != CAPACITY) {
+            for (int i = 0; i < HEADER_SIZE; i += 8) {
+                mBuffer.putLong(i, 0);
+            }
+            mBuffer.putInt(OFFSET_TIMEOUT, SettingsCache.NOT_FOUND);
+            mBuffer.putInt(OFFSET_STAY_ON, SettingsCache.NOT_FOUND);
+            mBuffer.putInt(OFFSET_CAPACITY, CAPACITY);
+            mBuffer.putInt(OFFSET_VERSION, VERSION);
+            mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        }
+        return true;
+    }
+
+    @Override
+    public void onWritten(String name, int value) {
+        if (Settings.System.SCREEN_OFF_TIMEOUT.equals(name)) {
+            appendIfChanged(System.currentTimeMillis(), FIELD_TIMEOUT, value);
+        } else if (Settings.System.STAY_ON_WHILE_PLUGGED_IN.equals(name)) {
+            appendIfChanged(System.currentTimeMillis(), FIELD_STAY_ON, value);
+        }
+    }
+
+    @Override
+    public void onLoaded(SettingsCache.Snapshot snapshot) {
+        sync(System.currentTimeMillis(), snapshot);
+    }
+
+    /**
+     * Appends a record for every row of the snapshot that differs from the
+     * state in the header. Seeds the header the first time.
+     */
+    synchronized void sync(long time, SettingsCache.Snapshot snapshot) {
+        appendIfChanged(time, FIELD_TIMEOUT, snapshot.screenOffTimeout);
+        appendIfChanged(time, FIELD_STAY_ON, snapshot.stayOn);
+    }
+
+    /**
+     * Appends a record unless the field already has the value, so a write
+     * and the reload that follows it are recorded once.
+     */
+    synchronized void appendIfChanged(long time, int field, int value) {
+        if (!open()) {
+            return;
+        }
+        if (mBuffer.getInt(field == FIELD_TIMEOUT ? OFFSET_TIMEOUT : OFFSET_STAY_ON) != value) {
+            append(time, field, value);
+        }
+    }
+
+    /**
+     * Appends a record and charges the time since the previous one to the
+     * state that was in effect.
+     */
+    synchronized void append(long time, int field, int value) {
+        if (!open()) {
+            return;
+        }
+        int head = mBuffer.getInt(OFFSET_HEAD);
+        int offset = HEADER_SIZE + head * RECORD_SIZE;
+        mBuffer.putLong(offset, time);
+        mBuffer.putInt(offset + 8, field);
+        mBuffer.putInt(offset + 12, value);
+
+        accumulate(mBuffer, time);
+        mBuffer.putInt(field == FIELD_TIMEOUT ? OFFSET_TIMEOUT : OFFSET_STAY_ON, value);
+        mBuffer.putLong(OFFSET_LAST_TIME, time);
+        mBuffer.putInt(OFFSET_HEAD, (head + 1) % CAPACITY);
+        mBuffer.putLong(OFFSET_COUNT, mBuffer.getLong(OFFSET_COUNT) + 1);
+    }
+
+    /**
+     * Adds the time between the last record and now to the current state's counters.
+     */
+    private static void accumulate(ByteBuffer buffer, long now) {
+        long lastTime = buffer.getLong(OFFSET_LAST_TIME);
+        long elapsed = now - lastTime;
+        if (lastTime == 0 || elapsed <= 0) {
+            // Nothing known yet, or the clock went back
+            return;
+        }
+        if (buffer.getInt(OFFSET_STAY_ON) > 0) {
+            buffer.putLong(OFFSET_STAY_ON_MILLIS, buffer.getLong(OFFSET_STAY_ON_MILLIS) + elapsed);
+        }
+        int timeout = buffer.getInt(OFFSET_TIMEOUT);
+        if (timeout == SettingsCache.NOT_FOUND) {
+            return;
+        }
+        for (int slot = 0; slot < TIMEOUT_SLOTS; slot++) {
+            int offset = OFFSET_SLOTS + slot * SLOT_SIZE;
+            boolean inUse = buffer.getInt(offset + 4) != 0;
+            if (!inUse) {
+                buffer.putInt(offset, timeout);
+                buffer.putInt(offset + 4, 1);
+            }
+            if (!inUse || buffer.getInt(offset) == timeout) {
+                buffer.putLong(offset + 8, buffer.getLong(offset + 8) + elapsed);
+                return;
+            }
+        }
+        buffer.putLong(OFFSET_OTHER_MILLIS, buffer.getLong(OFFSET_OTHER_MILLIS) + elapsed);
+    }
+
+    /**
+     * Reads the totals from the header, counting the current state up to now.
+     *
+     * @return the totals, or null if the log can not be used.
+     */
+    synchronized Stats getStats(long now) {
+        if (!open()) {
+            return null;
+        }
+        // Work on a copy of the header so the file is left untouched
+        byte[] copy = new byte[HEADER_SIZE];
+        ByteBuffer header = mBuffer.duplicate();
+        header.clear();
+        header.get(copy, 0, HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(copy);
+        accumulate(buffer, now);
+
+        Stats stats = new Stats();
+        stats.count = buffer.getLong(OFFSET_COUNT);
+        stats.stayOnMillis = buffer.getLong(OFFSET_STAY_ON_MILLIS);
+        stats.otherMillis = buffer.getLong(OFFSET_OTHER_MILLIS);
+        int used = 0;
+        while (used < TIMEOUT_SLOTS && buffer.getInt(OFFSET_SLOTS + used * SLOT_SIZE + 4) != 0) {
+            used++;
+        }
+        stats.timeouts = new int[used];
+        stats.timeoutMillis = new long[used];
+        for (int slot = 0; slot < used; slot++) {
+            int offset = OFFSET_SLOTS + slot * SLOT_SIZE;
+            stats.timeouts[slot] = buffer.getInt(offset);
+            stats.timeoutMillis[slot] = buffer.getLong(offset + 8);
+        }
+        return stats;
+    }
+
+    /**
+     * Prints the totals and the latest records.
+     */
+    synchronized void dump(String prefix, PrintWriter writer, int maxRecords) {
+        Stats stats = getStats(System.currentTimeMillis());
+        if (stats == null) {
+            writer.print(prefix);
+            writer.println("Change log unavailable");
+            return;
+        }
+        writer.print(prefix);
+        writer.print("Changes recorded: ");
+        writer.println(stats.count);
+        for (int slot = 0; slot < stats.timeouts.length; slot++) {
+            writer.print(prefix);
+            writer.print("  timeout ");
+            writer.print(PresetStore.formatTimeout(stats.timeouts[slot]));
+            writer.print(": ");
+            writer.print(stats.timeoutMillis[slot] / 1000);
+            writer.println("s");
+        }
+        writer.print(prefix);
+        writer.print("  other timeouts: ");
+        writer.print(stats.otherMillis / 1000);
+        writer.println("s");
+        writer.print(prefix);
+        writer.print("  stay on: ");
+        writer.print(stats.stayOnMillis / 1000);
+        writer.println("s");
+
+        int head = mBuffer.getInt(OFFSET_HEAD);
+        int records = (int) Math.min(Math.min(stats.count, CAPACITY), maxRecords);
+        for (int i = 1; i <= records; i++) {
+            int offset = HEADER_SIZE + ((head - i + CAPACITY) % CAPACITY) * RECORD_SIZE;
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(mBuffer.getLong(offset));
+            writer.print(mBuffer.getInt(offset + 8) == FIELD_TIMEOUT ? " timeout=" : " stay_on=");
+            writer.println(mBuffer.getInt(offset + 12));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * Applies {@link AppTimeoutRules} when the user comes back to the device.
+ * The foreground changes since the last run are read in one batch from a
+ * {@link ForegroundEventSource}. When the app with a rule is no longer in the
+ * foreground the saved timeout is restored.
+ * There is deliberately no polling while a rule is in effect. The saved
+ * timeout is restored on the first unlock after the rule app left the
+ * foreground, so with a "never" rule that can be the next time the user turns
+ * the screen off and on again.
+ * The receiver is disabled in the manifest and only enabled while rules are
+ * set or the saved timeout still has to be restored, see {@link #updateEnabled}.
+ */
+public class ForegroundAppReceiver extends BroadcastReceiver {
+    private static final String TAG = "ForegroundAppReceiver";
+    static final String KEY_APP_RULES = "app_rules";
+    private static final String KEY_LAST_QUERY = "app_rules_last_query";
+    private static final String KEY_RULE_ACTIVE = "app_rules_active";
+    /** The timeout a rule wrote, restored only while it is still in place */
+    private static final String KEY_RULE_VALUE = "app_rules_value";
+    /** How far back to look the first time, or after a long break. */
+    private static final long MAX_LOOKBACK_MS = 24 * 60 * 60 * 1000L;
+
+    // Last parsed rules, parsing again only when the text changes
+    private static String sSpec;
+    private static AppTimeoutRules sRules = AppTimeoutRules.EMPTY;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // No usage events before API level 21
+            return;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean wasActive = prefs.getBoolean(KEY_RULE_ACTIVE, false);
+        if (!wasActive && getRules(prefs.getString(KEY_APP_RULES, null)).isEmpty()) {
+            // Nothing to do, and no reason to be woken up again
+            setEnabled(context, false);
+            return;
+        }
+        SettingsCache cache = SettingsCache.getInstance(context);
+        boolean changed = applyRules(prefs, new UsageStatsEventSource(context), cache,
+                PresetStore.getInstance(context).getSavedTimeout(), System.currentTimeMillis());
+        if (wasActive && !prefs.getBoolean(KEY_RULE_ACTIVE, false)
+                && getRules(prefs.getString(KEY_APP_RULES, null)).isEmpty()) {
+            // The rules were removed while one was in effect, this was the last restore
+            setEnabled(context, false);
+        }
+        if (!changed) {
+            return;
+        }
+        WidgetProvider.updateWidget(context);
+
+        // Keep the process alive until the queued write reaches the provider
+        final PendingResult result = goAsync();
+        cache.runAfterWrites(new Runnable() {
+            @Override
+            public void run() {
+                result.finish();
+            }
+        });
+    }
+
+    /**
+     * Reads the foreground changes since the last run and sets the timeout
+     * of the matching rule, or restores the saved one once the app is gone.
+     * The saved timeout is only restored if the timeout is still the one a
+     * rule set, a change made meanwhile by hand or by another feature wins.
+     *
+     * @param prefs   Holds the rules and what the last run did
+     * @param source   Where the foreground events come from
+     * @param cache   The settings to change
+     * @param savedTimeout   The timeout to restore
+     * @param now   Current wall clock time
+     * @return true if the timeout was changed.
+     */
+    static boolean applyRules(SharedPreferences prefs, ForegroundEventSource source,
+            SettingsCache cache, int savedTimeout, long now) {
+        AppTimeoutRules rules = getRules(prefs.getString(KEY_APP_RULES, null));
+        boolean ruleActive = prefs.getBoolean(KEY_RULE_ACTIVE, false);
+        if (rules.isEmpty() && !ruleActive) {
+            return false;
+        }
+
+        long begin = Math.max(prefs.getLong(KEY_LAST_QUERY, 0), now - MAX_LOOKBACK_MS);
+        String packageName = source.getLastForegroundPackage(begin, now);
+        SharedPreferences.Editor editor = prefs.edit().putLong(KEY_LAST_QUERY, now);
+        if (packageName == null) {
+            // Nothing moved to the foreground, whatever was applied still holds
+            editor.commit();
+            return false;
+        }
+
+        int current = cache.get().screenOffTimeout;
+        int value = rules.valueFor(packageName);
+        boolean changed = false;
+        if (value != AppTimeoutRules.NO_RULE) {
+            if (current != value && cache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, value)) {
+                changed = true;
+                editor.putInt(KEY_RULE_VALUE, value);
+            }
+            editor.putBoolean(KEY_RULE_ACTIVE, true);
+        } else if (ruleActive) {
+            if (current == prefs.getInt(KEY_RULE_VALUE, SettingsCache.NOT_FOUND) && current != savedTimeout) {
+                changed = cache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, savedTimeout);
+            }
+            editor.putBoolean(KEY_RULE_ACTIVE, false).remove(KEY_RULE_VALUE);
+        }
+        editor.commit();
+        return changed;
+    }
+
+    /**
+     * Enables the receiver if the given rules are set or the saved timeout
+     * has yet to be restored, disables it otherwise.
+     *
+     * @param context   The Context
+     * @param spec   The rules about to be saved
+     */
+    static void updateEnabled(Context context, String spec) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        setEnabled(context, !getRules(spec).isEmpty() || prefs.getBoolean(KEY_RULE_ACTIVE, false));
+    }
+
+    private static void setEnabled(Context context, boolean enabled) {
+        PackageManager pm = context.getPackageManager();
+        if (pm != null) {
+            pm.setComponentEnabledSetting(new ComponentName(context, ForegroundAppReceiver.class),
+                    enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                            : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                    PackageManager.DONT_KILL_APP);
+        }
+    }
+
+    static synchronized AppTimeoutRules getRules(String spec) {
+        if (spec == null ? sSpec != null : !spec.equals(sSpec)) {
+            try {
+                sRules = AppTimeoutRules.parse(spec);
+            } catch (IllegalArgumentException iae) {
+                Log.w(TAG, "Ignoring app rules: " + iae.getMessage());
+                sRules = AppTimeoutRules.EMPTY;
+            }
+            sSpec = spec;
+        }
+        return sRules;
+    }
+}
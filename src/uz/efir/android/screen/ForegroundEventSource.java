@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+/**
+ * Source of foreground-change events.
+ * The real one is {@link UsageStatsEventSource}; a fake one can replay
+ * recorded events off-device.
+ */
+interface ForegroundEventSource {
+    /**
+     * Returns the package that most recently moved to the foreground in the
+     * given time range, or null if no app did.
+     *
+     * @param beginMillis   Start of the range, wall clock time, inclusive
+     * @param endMillis   End of the range, wall clock time, exclusive
+     */
+    String getLastForegroundPackage(long beginMillis, long endMillis);
+}
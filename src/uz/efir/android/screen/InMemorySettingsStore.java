@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import java.util.HashMap;
+
+/**
+ * {@link SettingsStore} kept in memory. Counts every call, so the number of
+ * provider round trips a user action would cost can be checked without a
+ * device, see ToggleBenchmark in the benchmark module.
+ */
+final class InMemorySettingsStore implements SettingsStore {
+    private final HashMap<String, Integer> mSystem = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mGlobal = new HashMap<String, Integer>();
+    private int mReadCount;
+    private int mWriteCount;
+
+    @Override
+    public synchronized int getInt(int table, String name, int defaultValue) {
+        mReadCount++;
+        Integer value = getTable(table).get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    public synchronized void getInts(int table, String[] names, int[] values, int defaultValue) {
+        mReadCount++;
+        for (int i = 0; i < names.length; i++) {
+            Integer value = getTable(table).get(names[i]);
+            values[i] = value == null ? defaultValue : value;
+        }
+    }
+
+    @Override
+    public synchronized void putInt(int table, String name, int value) {
+        mWriteCount++;
+        getTable(table).put(name, value);
+    }
+
+    private HashMap<String, Integer> getTable(int table) {
+        return table == TABLE_GLOBAL ? mGlobal : mSystem;
+    }
+
+    /**
+     * @return number of read calls, a batched read counts as one.
+     */
+    synchronized int getReadCount() {
+        return mReadCount;
+    }
+
+    synchronized int getWriteCount() {
+        return mWriteCount;
+    }
+
+    synchronized void resetCounts() {
+        mReadCount = 0;
+        mWriteCount = 0;
+    }
+}
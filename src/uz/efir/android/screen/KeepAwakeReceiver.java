@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.provider.Settings;
+
+/**
+ * Timed "never time out": keeps the screen on for a number of minutes, then
+ * restores the saved timeout. Nothing runs in between, there is one alarm
+ * and the end time is kept in preferences, so the timer survives a reboot.
+ * If the timeout was changed by someone else meanwhile it is left alone.
+ */
+public class KeepAwakeReceiver extends BroadcastReceiver {
+    static final String KEY_KEEP_AWAKE = "keep_awake";
+    private static final String KEY_UNTIL = "keep_awake_until";
+    private static final String KEY_VALUE = "keep_awake_value";
+    private static final String ACTION_KEEP_AWAKE_END = "uz.efir.android.screen.action.KEEP_AWAKE_END";
+    /** Used by the widget until a duration is picked in OffTimeOut */
+    private static final int DEFAULT_MINUTES = 60;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long until = prefs.getLong(KEY_UNTIL, 0);
+        if (until == 0) {
+            return;
+        }
+        if (System.currentTimeMillis() < until) {
+            // Rebooted while the timer was running, alarms do not survive that
+            setAlarm(context, until);
+            return;
+        }
+
+        stop(context);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Keep the process alive until the queued write reaches the provider
+            final PendingResult result = goAsync();
+            SettingsCache.getInstance(context).runAfterWrites(new Runnable() {
+                @Override
+                public void run() {
+                    result.finish();
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets "never time out" for the given time and arms the alarm ending it.
+     *
+     * @param context   The Context
+     * @param minutes   How long to keep the screen on
+     */
+    static void start(Context context, int minutes) {
+        long until = System.currentTimeMillis() + minutes * 60 * 1000L;
+        SettingsCache.getInstance(context).putInt(Settings.System.SCREEN_OFF_TIMEOUT, -1);
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(KEY_UNTIL, until)
+                .putInt(KEY_VALUE, -1)
+                .commit();
+        setAlarm(context, until);
+        WidgetProvider.updateWidget(context);
+    }
+
+    /**
+     * Ends the timer now. The saved timeout is restored only if the timeout
+     * is still the one {@link #start(Context, int)} set.
+     */
+    static void stop(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long until = prefs.getLong(KEY_UNTIL, 0);
+        int value = prefs.getInt(KEY_VALUE, SettingsCache.NOT_FOUND);
+        cancel(context);
+        if (until == 0) {
+            return;
+        }
+
+        SettingsCache cache = SettingsCache.getInstance(context);
+        if (cache.get().screenOffTimeout == value) {
+            cache.putInt(Settings.System.SCREEN_OFF_TIMEOUT,
+                    PresetStore.getInstance(context).getSavedTimeout());
+            WidgetProvider.updateWidget(context);
+        }
+    }
+
+    /**
+     * Forgets the running timer without touching the timeout, for when the
+     * user sets the timeout by hand.
+     */
+    static void cancel(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.contains(KEY_UNTIL)) {
+            return;
+        }
+        prefs.edit().remove(KEY_UNTIL).remove(KEY_VALUE).commit();
+        getAlarmManager(context).cancel(getOperation(context));
+    }
+
+    /**
+     * Starts the timer with the last picked duration, or stops it if the
+     * screen already never times out. Used by the widget.
+     */
+    static void toggle(Context context) {
+        if (SettingsCache.getInstance(context).get().isNeverTimeout()) {
+            if (getUntil(context) == 0) {
+                // Plain "never time out", turn it off like the regular button does
+                SettingsCache.getInstance(context).putInt(Settings.System.SCREEN_OFF_TIMEOUT,
+                        PresetStore.getInstance(context).getSavedTimeout());
+            } else {
+                stop(context);
+            }
+            return;
+        }
+        int minutes = DEFAULT_MINUTES;
+        try {
+            minutes = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(context)
+                    .getString(KEY_KEEP_AWAKE, String.valueOf(DEFAULT_MINUTES)));
+        } catch (NumberFormatException nfe) {
+            // Keep the default
+        }
+        start(context, minutes > 0 ? minutes : DEFAULT_MINUTES);
+    }
+
+    /**
+     * @return when the running timer ends, 0 if none is running.
+     */
+    static long getUntil(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getLong(KEY_UNTIL, 0);
+    }
+
+    private static void setAlarm(Context context, long until) {
+        AlarmManager alarmManager = getAlarmManager(context);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Not a wakeup alarm: the screen is on while the timer runs, and if it
+            // went off anyway the restore can wait until the device wakes up
+            alarmManager.setExact(AlarmManager.RTC, until, getOperation(context));
+        } else {
+            alarmManager.set(AlarmManager.RTC, until, getOperation(context));
+        }
+    }
+
+    private static AlarmManager getAlarmManager(Context context) {
+        return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    private static PendingIntent getOperation(Context context) {
+        return PendingIntent.getBroadcast(context, 0 /* no requestCode */,
+                new Intent(ACTION_KEEP_AWAKE_END).setClass(context, KeepAwakeReceiver.class),
+                0 /* no flags */);
+    }
+}
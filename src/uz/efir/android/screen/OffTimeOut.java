@@ -17,21 +17,27 @@ package uz.efir.android.screen;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.preference.CheckBoxPreference;
+import android.preference.EditTextPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.provider.Settings;
-import android.provider.Settings.SettingNotFoundException;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
 import android.view.View;
-import android.view.inputmethod.InputMethodManager;
+import android.view.ViewTreeObserver;
+import android.view.WindowManager;
 import android.widget.EditText;
+import android.widget.Toast;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Date;
 
 /**
  * A simple screen time out controller.
@@ -39,61 +45,240 @@ import android.widget.EditText;
  * this class provides an input form where users can put
  * desired screen time out threshold in minutes.
  */
-public class OffTimeOut extends PreferenceActivity implements DialogInterface.OnDismissListener {
+public class OffTimeOut extends PreferenceActivity implements Preference.OnPreferenceChangeListener {
     private CheckBoxPreference mNeverTimeOutCheckBoxPref;
     private CheckBoxPreference mStayOnWhilePluggedCheckBoxPref;
-    private EditText mEditText;
-    private ContentResolver mContentResolver;
+    private EditTextPreference mPresetsPref;
+    private Preference mUsageStatsPref;
+    private Preference mKeepAwakePref;
+    private Preference mUsageAccessPref;
+    /** Read the current settings or the saved timeout, enabled once those are loaded */
+    private Preference[] mLoadedPrefs;
+    // Each dialog is created once and kept, so each keeps its own field
+    private EditText mCustomEditText;
+    private EditText mDefaultEditText;
+    private SettingsCache mSettingsCache;
     private static final int DIALOG_CUSTOM_TIMEOUT = 101;
     private static final int DIALOG_DEFAULT_TIMEOUT = 202;
-    private static final String SOFFT_ROW_NAME = "uz_efir_screen_off";
+    private static final String KEY_PRESETS = "presets";
+    /** Timeouts listed in the usage summary, longest first */
+    private static final int USAGE_STATS_ENTRIES = 3;
+    private boolean mFullyDrawnReported;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        final long startNanos = System.nanoTime();
         super.onCreate(savedInstanceState);
         setTitle(R.string.app_fullname);
 
-        mContentResolver = getContentResolver();
-        try {
-            Settings.System.getInt(mContentResolver, SOFFT_ROW_NAME);
-        } catch (SettingNotFoundException snfe1) {
-            try {
-                int settingsValue = Settings.System.getInt(mContentResolver, Settings.System.SCREEN_OFF_TIMEOUT);
-                Settings.System.putInt(mContentResolver, SOFFT_ROW_NAME, settingsValue);
-            } catch (SettingNotFoundException snfe2) {
-                // OK, give up and just set it as one minute!
-                Settings.System.putInt(mContentResolver, SOFFT_ROW_NAME, 60000);
-            }
-        }
+        // No provider access here, the values are loaded in the background in onResume()
+        mSettingsCache = SettingsCache.getInstance(this);
 
         addPreferencesFromResource(R.xml.preference_screentimeout);
         mNeverTimeOutCheckBoxPref = (CheckBoxPreference)getPreferenceScreen().findPreference("never");
         mStayOnWhilePluggedCheckBoxPref = (CheckBoxPreference)getPreferenceScreen().findPreference("plugged");
-        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.JELLY_BEAN) {
-            // STAY_ON_WHILE_PLUGGED_IN is moved to Global table in API level 17
-            mStayOnWhilePluggedCheckBoxPref.setEnabled(false);
-            mStayOnWhilePluggedCheckBoxPref.setSummary(R.string.stay_on_while_plugged_in_disabled_summary);
+        // Enabled in onSettingsLoaded(), once the values and the permissions are known
+        mNeverTimeOutCheckBoxPref.setEnabled(false);
+        mStayOnWhilePluggedCheckBoxPref.setEnabled(false);
+        getPreferenceScreen().findPreference(ScheduleReceiver.KEY_SCHEDULE).setOnPreferenceChangeListener(this);
+        Preference appRulesPref = getPreferenceScreen().findPreference(ForegroundAppReceiver.KEY_APP_RULES);
+        // Opens the system screen granting usage access, see the preference's intent
+        mUsageAccessPref = getPreferenceScreen().findPreference("usage_access");
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // Foreground app events are only available from API level 21
+            appRulesPref.setEnabled(false);
+            appRulesPref.setSummary(R.string.app_rules_disabled_summary);
+            mUsageAccessPref.setEnabled(false);
+            mUsageAccessPref.setSummary(R.string.app_rules_disabled_summary);
         }
+        appRulesPref.setOnPreferenceChangeListener(this);
+        getPreferenceScreen().findPreference(BatteryReceiver.KEY_BATTERY_THRESHOLDS)
+                .setOnPreferenceChangeListener(this);
+        // Not persisted here, the presets live in PresetStore
+        mPresetsPref = (EditTextPreference)getPreferenceScreen().findPreference(KEY_PRESETS);
+        mPresetsPref.setOnPreferenceChangeListener(this);
+        mLoadedPrefs = new Preference[] {
+            getPreferenceScreen().findPreference("custom"),
+            getPreferenceScreen().findPreference("default_timeout"),
+            mPresetsPref
+        };
+        for (Preference pref : mLoadedPrefs) {
+            pref.setEnabled(false);
+        }
+        mUsageStatsPref = getPreferenceScreen().findPreference("usage_stats");
+        // Persists the last picked duration, the widget uses it too
+        mKeepAwakePref = getPreferenceScreen().findPreference(KeepAwakeReceiver.KEY_KEEP_AWAKE);
+        mKeepAwakePref.setOnPreferenceChangeListener(this);
+
+        // Startup benchmark: time from onCreate() to the first frame
+        final ViewTreeObserver observer = getWindow().getDecorView().getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                PerfStats.record(PerfStats.PHASE_FIRST_DRAW, startNanos);
+                if (observer.isAlive()) {
+                    observer.removeOnPreDrawListener(this);
+                }
+                return true;
+            }
+        });
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        mNeverTimeOutCheckBoxPref.setChecked(Settings.System.getInt(mContentResolver,
-                Settings.System.SCREEN_OFF_TIMEOUT, -1) == -1);
-        mStayOnWhilePluggedCheckBoxPref.setChecked(Settings.System.getInt(mContentResolver, Build.VERSION.SDK_INT > Build.VERSION_CODES.JELLY_BEAN
-                ? Settings.Global.STAY_ON_WHILE_PLUGGED_IN : Settings.System.STAY_ON_WHILE_PLUGGED_IN, 0) != 0);
+        SettingsCache.Snapshot snapshot = mSettingsCache.peek();
+        if (snapshot != null) {
+            // Show the known values right away, the permissions are checked below
+            setChecked(snapshot);
+        }
+
+        // Draw first, fill in the check boxes once the values and the permissions arrive
+        mSettingsCache.loadAsync(new Runnable() {
+            @Override
+            public void run() {
+                // The permissions may have been granted while we were away
+                if (mSettingsCache.getCapabilities().refresh()) {
+                    // The widget's stay-on button follows the permission
+                    WidgetProvider.updateWidget(OffTimeOut.this);
+                }
+                final SettingsCache.Snapshot loaded = mSettingsCache.get();
+                // Loads the saved timeout, migrating it on the very first run
+                PresetStore.getInstance(OffTimeOut.this);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSettingsLoaded(loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onSettingsLoaded(SettingsCache.Snapshot snapshot) {
+        setChecked(snapshot);
+        mNeverTimeOutCheckBoxPref.setEnabled(true);
+        for (Preference pref : mLoadedPrefs) {
+            pref.setEnabled(true);
+        }
+        boolean canWriteStayOn = mSettingsCache.getCapabilities()
+                .canWrite(Settings.System.STAY_ON_WHILE_PLUGGED_IN);
+        mStayOnWhilePluggedCheckBoxPref.setEnabled(canWriteStayOn);
+        mStayOnWhilePluggedCheckBoxPref.setSummary(canWriteStayOn
+                ? R.string.stay_on_while_plugged_in_summary
+                : R.string.stay_on_while_plugged_in_no_permission_summary);
+        mPresetsPref.setText(PresetStore.getInstance(this).getPresetSpec());
+        updateKeepAwakeSummary();
+
+        loadUsageStats();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            loadUsageAccess();
+        }
+
+        if (!mFullyDrawnReported && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Shows up as "Fully drawn" in the log and in "am start -W"
+            reportFullyDrawn();
+        }
+        mFullyDrawnReported = true;
+    }
+
+    private void setChecked(SettingsCache.Snapshot snapshot) {
+        mNeverTimeOutCheckBoxPref.setChecked(snapshot.screenOffTimeout == SettingsCache.NOT_FOUND
+                || snapshot.screenOffTimeout == -1);
+        mStayOnWhilePluggedCheckBoxPref.setChecked(snapshot.isStayOn());
+    }
+
+    private void updateKeepAwakeSummary() {
+        long until = KeepAwakeReceiver.getUntil(this);
+        if (until > System.currentTimeMillis()) {
+            mKeepAwakePref.setSummary(getString(R.string.keep_awake_active_summary,
+                    DateFormat.getTimeFormat(this).format(new Date(until))));
+        } else {
+            mKeepAwakePref.setSummary(R.string.keep_awake_summary);
+        }
+    }
+
+    /**
+     * Checks in the background whether usage access was granted, the user may
+     * just be back from granting it.
+     */
+    private void loadUsageAccess() {
+        mSettingsCache.loadAsync(new Runnable() {
+            @Override
+            public void run() {
+                final boolean granted = UsageStatsEventSource.hasAccess(OffTimeOut.this);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mUsageAccessPref.setSummary(granted
+                                ? R.string.usage_access_granted_summary : R.string.usage_access_summary);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads the totals from the change log header in the background.
+     */
+    private void loadUsageStats() {
+        mSettingsCache.loadAsync(new Runnable() {
+            @Override
+            public void run() {
+                final ChangeLog.Stats stats = ChangeLog.getInstance(OffTimeOut.this)
+                        .getStats(System.currentTimeMillis());
+                if (stats == null || stats.count == 0) {
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mUsageStatsPref.setSummary(formatUsageStats(stats));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the longest used timeouts and the stay-on time, e.g. "never 1:02:03, 2m 10:00, stay on 5:00:00"
+     */
+    private String formatUsageStats(ChangeLog.Stats stats) {
+        StringBuilder summary = new StringBuilder();
+        boolean[] listed = new boolean[stats.timeouts.length];
+        for (int entry = 0; entry < USAGE_STATS_ENTRIES; entry++) {
+            int longest = -1;
+            for (int i = 0; i < stats.timeouts.length; i++) {
+                if (!listed[i] && (longest < 0 || stats.timeoutMillis[i] > stats.timeoutMillis[longest])) {
+                    longest = i;
+                }
+            }
+            if (longest < 0) {
+                break;
+            }
+            listed[longest] = true;
+            summary.append(PresetStore.formatTimeout(stats.timeouts[longest])).append(' ')
+                    .append(DateUtils.formatElapsedTime(stats.timeoutMillis[longest] / 1000))
+                    .append(", ");
+        }
+        summary.append(getString(R.string.usage_stats_stay_on)).append(' ')
+                .append(DateUtils.formatElapsedTime(stats.stayOnMillis / 1000));
+        return summary.toString();
     }
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         String key = preference.getKey();
         if (preference.equals(mNeverTimeOutCheckBoxPref)) {
+            PerfStats.markStart(PerfStats.PHASE_PREFERENCE);
+            // Set by hand, the timer of "keep awake" no longer applies
+            KeepAwakeReceiver.cancel(this);
+            updateKeepAwakeSummary();
             if (mNeverTimeOutCheckBoxPref.isChecked()) {
-                Settings.System.putInt(mContentResolver, Settings.System.SCREEN_OFF_TIMEOUT, -1);
+                mSettingsCache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, -1);
             } else {
-                Settings.System.putInt(mContentResolver, Settings.System.SCREEN_OFF_TIMEOUT,
-                        Settings.System.getInt(mContentResolver, SOFFT_ROW_NAME, 60000));
+                mSettingsCache.putInt(Settings.System.SCREEN_OFF_TIMEOUT,
+                        PresetStore.getInstance(this).getSavedTimeout());
             }
             // Update widget button's state
             WidgetProvider.updateWidget(this);
@@ -102,7 +287,8 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
         } else if ("default_timeout".equals(key)) {
             showDialog(DIALOG_DEFAULT_TIMEOUT);
         } else if (preference.equals(mStayOnWhilePluggedCheckBoxPref)) {
-            Settings.System.putInt(mContentResolver, Settings.System.STAY_ON_WHILE_PLUGGED_IN,
+            PerfStats.markStart(PerfStats.PHASE_PREFERENCE);
+            mSettingsCache.putInt(Settings.System.STAY_ON_WHILE_PLUGGED_IN,
                     mStayOnWhilePluggedCheckBoxPref.isChecked()
                     ? (BatteryManager.BATTERY_PLUGGED_AC | BatteryManager.BATTERY_PLUGGED_USB) : 0);
             // Update widget button's state
@@ -112,22 +298,73 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
         return super.onPreferenceTreeClick(preferenceScreen, preference);
     }
 
+    @Override
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
+        if (ScheduleReceiver.KEY_SCHEDULE.equals(preference.getKey())) {
+            final String spec = (String) newValue;
+            try {
+                TimeoutSchedule.parse(spec);
+            } catch (IllegalArgumentException iae) {
+                Toast.makeText(this, R.string.schedule_invalid, Toast.LENGTH_SHORT).show();
+                return false;
+            }
+            ScheduleReceiver.updateEnabled(this, spec);
+            // Reads the current timeout, keep that off the UI thread
+            mSettingsCache.loadAsync(new Runnable() {
+                @Override
+                public void run() {
+                    ScheduleReceiver.applySchedule(OffTimeOut.this, spec);
+                }
+            });
+        } else if (ForegroundAppReceiver.KEY_APP_RULES.equals(preference.getKey())) {
+            try {
+                AppTimeoutRules.parse((String) newValue);
+            } catch (IllegalArgumentException iae) {
+                Toast.makeText(this, R.string.app_rules_invalid, Toast.LENGTH_SHORT).show();
+                return false;
+            }
+            ForegroundAppReceiver.updateEnabled(this, (String) newValue);
+        } else if (BatteryReceiver.KEY_BATTERY_THRESHOLDS.equals(preference.getKey())) {
+            try {
+                BatteryTimeoutPolicy.parse((String) newValue);
+            } catch (IllegalArgumentException iae) {
+                Toast.makeText(this, R.string.battery_thresholds_invalid, Toast.LENGTH_SHORT).show();
+                return false;
+            }
+            BatteryReceiver.updateEnabled(this, (String) newValue);
+        } else if (KeepAwakeReceiver.KEY_KEEP_AWAKE.equals(preference.getKey())) {
+            PerfStats.markStart(PerfStats.PHASE_PREFERENCE);
+            KeepAwakeReceiver.start(this, Integer.parseInt((String) newValue));
+            mNeverTimeOutCheckBoxPref.setChecked(true);
+            updateKeepAwakeSummary();
+        } else if (KEY_PRESETS.equals(preference.getKey())) {
+            try {
+                PresetStore.getInstance(this).setPresets((String) newValue);
+            } catch (IllegalArgumentException iae) {
+                Toast.makeText(this, R.string.presets_invalid, Toast.LENGTH_SHORT).show();
+                return false;
+            }
+            WidgetProvider.onPresetsChanged(this);
+        }
+        return true;
+    }
+
     @Override
     protected Dialog onCreateDialog (int id) {
         final View textInputView = getLayoutInflater().inflate(R.layout.dialog, null);
 
         switch (id) {
             case DIALOG_CUSTOM_TIMEOUT:
-                mEditText = (EditText)textInputView.findViewById(R.id.custom_box);
+                mCustomEditText = (EditText)textInputView.findViewById(R.id.custom_box);
                 textInputView.findViewById(R.id.default_box).setVisibility(View.GONE);
-                return new AlertDialog.Builder(this)
+                return showImeWithDialog(new AlertDialog.Builder(this)
                     .setView(textInputView)
                     .setTitle(R.string.custom_timeout)
                     .setMessage(R.string.custom_timeout_dialog_msg)
                     .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
-                            String inputString = mEditText.getText().toString();
+                            String inputString = mCustomEditText.getText().toString();
                             if (inputString.length() > 0) { // Skip if nothing was entered
                                 int userInput;
                                 try {
@@ -135,7 +372,7 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
                                     userInput = userInput * 60 * 1000;
                                 } catch (NumberFormatException nfe) {
                                     // Snap, something went wrong!
-                                    userInput = Settings.System.getInt(mContentResolver, SOFFT_ROW_NAME, 60000);
+                                    userInput = PresetStore.getInstance(OffTimeOut.this).getSavedTimeout();
                                 }
 
                                 if (userInput > 0) {
@@ -143,7 +380,10 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
                                      * Don't be fooled by inputString.length() > 0 above.
                                      * Users are *crazy*, they will try to input several 'zero's just to see what will happen.
                                      */
-                                    Settings.System.putInt(mContentResolver, Settings.System.SCREEN_OFF_TIMEOUT, userInput);
+                                    // Set by hand, the timer of "keep awake" no longer applies
+                                    KeepAwakeReceiver.cancel(OffTimeOut.this);
+                                    updateKeepAwakeSummary();
+                                    mSettingsCache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, userInput);
                                 }
                             }
 
@@ -155,12 +395,12 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
                             dialog.dismiss();
                         }
                     })
-                    .create();
+                    .create());
 
             case DIALOG_DEFAULT_TIMEOUT:
-                mEditText = (EditText)textInputView.findViewById(R.id.default_box);
+                mDefaultEditText = (EditText)textInputView.findViewById(R.id.default_box);
                 textInputView.findViewById(R.id.custom_box).setVisibility(View.GONE);
-                return new AlertDialog.Builder(this)
+                return showImeWithDialog(new AlertDialog.Builder(this)
                     .setView(textInputView)
                     .setTitle(R.string.default_timeout)
                     .setMessage(R.string.default_timeout_dialog_msg)
@@ -168,18 +408,18 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
                             // See the comments above
-                            String inputString = mEditText.getText().toString();
+                            String inputString = mDefaultEditText.getText().toString();
                             if (inputString.length() > 0) {
                                 int userInput;
                                 try {
                                     userInput = Integer.parseInt(inputString);
                                     userInput = userInput * 60 * 1000;
                                 } catch (NumberFormatException nfe) {
-                                    userInput = Settings.System.getInt(mContentResolver, Settings.System.SCREEN_OFF_TIMEOUT, 60000);
+                                    userInput = mSettingsCache.get().screenOffTimeout;
                                 }
 
                                 if (userInput > 0) {
-                                    Settings.System.putInt(mContentResolver, SOFFT_ROW_NAME, userInput);
+                                    PresetStore.getInstance(OffTimeOut.this).setSavedTimeout(userInput);
                                 }
                             }
 
@@ -192,7 +432,7 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
                             dialog.dismiss();
                         }
                     })
-                    .create();
+                    .create());
 
             default:
                 break;
@@ -201,14 +441,29 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
         return null;
     }
 
+    /**
+     * Shows the soft keyboard as soon as the dialog's text field has focus,
+     * each time the dialog is shown.
+     */
+    private static Dialog showImeWithDialog(Dialog dialog) {
+        dialog.getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_STATE_VISIBLE);
+        return dialog;
+    }
+
     @Override
     protected void onPrepareDialog(int id, Dialog dialog) {
-        dialog.setOnDismissListener(this);
+        EditText editText = id == DIALOG_CUSTOM_TIMEOUT ? mCustomEditText : mDefaultEditText;
         String defText= "";
         int currentValue = 0;
         switch (id) {
             case DIALOG_CUSTOM_TIMEOUT:
-                currentValue = Settings.System.getInt(mContentResolver, Settings.System.SCREEN_OFF_TIMEOUT, 60000);
+                // Never reads the provider: a dialog restored after a rotation
+                // may be prepared before the settings are loaded
+                SettingsCache.Snapshot snapshot = mSettingsCache.peek();
+                currentValue = snapshot == null ? SettingsCache.NOT_FOUND : snapshot.screenOffTimeout;
+                if (currentValue == SettingsCache.NOT_FOUND) {
+                    currentValue = PresetStore.DEFAULT_TIMEOUT;
+                }
                 if (currentValue <= 0) {
                     // So that we won't have to do all the routines below
                     break;
@@ -224,7 +479,8 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
                 break;
 
             case DIALOG_DEFAULT_TIMEOUT:
-                currentValue = Settings.System.getInt(mContentResolver, SOFFT_ROW_NAME, 60000);
+                PresetStore presets = PresetStore.peekInstance();
+                currentValue = presets == null ? PresetStore.DEFAULT_TIMEOUT : presets.getSavedTimeout();
                 if (currentValue <= 0) {
                     break;
                 }
@@ -235,25 +491,23 @@ public class OffTimeOut extends PreferenceActivity implements DialogInterface.On
                 }
         } // End switch
 
-        mEditText.setText(defText);
-        mEditText.selectAll();
-        Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                InputMethodManager imm = (InputMethodManager)getSystemService(INPUT_METHOD_SERVICE);
-                imm.showSoftInput(mEditText, InputMethodManager.SHOW_IMPLICIT);
-            }
-        }, 200);
+        editText.setText(defText);
+        editText.selectAll();
+        editText.requestFocus();
     }
 
     @Override
-    public void onDismiss(DialogInterface dialogInterface) {
-        /* There is that crazy bug that I could not figure out...
-         * That dialogs do not get cleared when dismissed
-         * So, remove them here and enjoy the rest of the party!
-         */
-        removeDialog(DIALOG_CUSTOM_TIMEOUT);
-        removeDialog(DIALOG_DEFAULT_TIMEOUT);
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("SOFFT performance:");
+        PerfStats.dump(prefix + "  ", writer);
+        WidgetUpdateScheduler scheduler = WidgetUpdateScheduler.getInstance(this);
+        writer.print(prefix);
+        writer.print("  Widget updates: requested=");
+        writer.print(scheduler.getRequestedCount());
+        writer.print(" sent=");
+        writer.println(scheduler.getDispatchedCount());
+        ChangeLog.getInstance(this).dump(prefix + "  ", writer, 10);
     }
 }
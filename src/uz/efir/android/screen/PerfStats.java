@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms and settings provider call counters for the hot paths.
+ * Recording does not allocate: every phase owns a fixed row of power-of-two
+ * buckets in microseconds. Use "adb shell dumpsys activity
+ * uz.efir.android.screen/.OffTimeOut" to print them.
+ */
+final class PerfStats {
+    /** Reading the settings snapshot from the store */
+    static final int PHASE_READ = 0;
+    /** Writing one row to the store */
+    static final int PHASE_WRITE = 1;
+    /** Building and sending widget RemoteViews */
+    static final int PHASE_BUILD = 2;
+    /** Widget tap in onReceive until the widget host is updated */
+    static final int PHASE_WIDGET_TAP = 3;
+    /** Preference click until the widget host is updated */
+    static final int PHASE_PREFERENCE = 4;
+    /** OffTimeOut.onCreate until its first frame is drawn */
+    static final int PHASE_FIRST_DRAW = 5;
+    /** Quick Settings tile click until the tile shows the new state */
+    static final int PHASE_TILE_TAP = 6;
+    static final int PHASE_COUNT = 7;
+
+    private static final String[] PHASE_NAMES = {
+        "read", "write", "build", "widget tap", "preference", "first draw",
+        "tile tap"
+    };
+
+    /** Bucket i holds samples below 2^i microseconds, the last one takes the rest. */
+    private static final int BUCKET_COUNT = 24;
+
+    private static final long[] sBuckets = new long[PHASE_COUNT * BUCKET_COUNT];
+    private static final long[] sCounts = new long[PHASE_COUNT];
+    private static final long[] sTotalNanos = new long[PHASE_COUNT];
+    private static final long[] sMaxNanos = new long[PHASE_COUNT];
+    /** Start time of a phase that ends somewhere else, 0 if none is running. */
+    private static final long[] sPendingStarts = new long[PHASE_COUNT];
+    private static long sProviderReads;
+    private static long sProviderWrites;
+
+    private static volatile boolean sTraceEnabled =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private PerfStats() {
+    }
+
+    /**
+     * Opens a systrace section, a no-op before API level 18.
+     */
+    static void beginSection(String name) {
+        if (sTraceEnabled) {
+            Trace.beginSection(name);
+        }
+    }
+
+    static void endSection() {
+        if (sTraceEnabled) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Turns systrace sections off, for running off-device where there is no Trace.
+     */
+    static void disableTracing() {
+        sTraceEnabled = false;
+    }
+
+    /**
+     * Records the time elapsed since startNanos, taken from {@link System#nanoTime()}.
+     */
+    static synchronized void record(int phase, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        if (elapsed < 0) {
+            return;
+        }
+        long micros = elapsed / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= BUCKET_COUNT) {
+            bucket = BUCKET_COUNT - 1;
+        }
+        sBuckets[phase * BUCKET_COUNT + bucket]++;
+        sCounts[phase]++;
+        sTotalNanos[phase] += elapsed;
+        if (elapsed > sMaxNanos[phase]) {
+            sMaxNanos[phase] = elapsed;
+        }
+    }
+
+    /**
+     * Starts a phase whose end is recorded elsewhere with {@link #markEnd(int)}.
+     * A phase started again before it ends keeps its first start time.
+     */
+    static synchronized void markStart(int phase) {
+        if (sPendingStarts[phase] == 0) {
+            sPendingStarts[phase] = System.nanoTime();
+        }
+    }
+
+    /**
+     * Ends a phase started with {@link #markStart(int)}, if any.
+     */
+    static synchronized void markEnd(int phase) {
+        long start = sPendingStarts[phase];
+        if (start != 0) {
+            sPendingStarts[phase] = 0;
+            record(phase, start);
+        }
+    }
+
+    static synchronized void countProviderRead() {
+        sProviderReads++;
+    }
+
+    static synchronized void countProviderWrite() {
+        sProviderWrites++;
+    }
+
+    static synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Settings provider calls: reads=");
+        writer.print(sProviderReads);
+        writer.print(" writes=");
+        writer.println(sProviderWrites);
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            long count = sCounts[phase];
+            writer.print(prefix);
+            writer.print(PHASE_NAMES[phase]);
+            writer.print(": count=");
+            writer.print(count);
+            if (count == 0) {
+                writer.println();
+                continue;
+            }
+            writer.print(" avg=");
+            writer.print(sTotalNanos[phase] / count / 1000);
+            writer.print("us max=");
+            writer.print(sMaxNanos[phase] / 1000);
+            writer.println("us");
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                long samples = sBuckets[phase * BUCKET_COUNT + bucket];
+                if (samples == 0) {
+                    continue;
+                }
+                writer.print(prefix);
+                writer.print(bucket == BUCKET_COUNT - 1 ? "  >=" : "  <");
+                writer.print(1L << (bucket == BUCKET_COUNT - 1 ? bucket - 1 : bucket));
+                writer.print("us: ");
+                writer.println(samples);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.provider.Settings;
+
+import java.util.ArrayList;
+
+/**
+ * SOFFT's own state: the saved timeout that is restored when "never time out"
+ * is turned off, and the named timeout presets.
+ * Kept in app-private SharedPreferences and loaded into memory once, so
+ * reading it never costs a settings provider call. The old
+ * uz_efir_screen_off row in Settings.System is migrated once.
+ *
+ * Presets are written as entries separated by ';', each an optional
+ * "name=" followed by a value such as "30s", "10m" or "never", for example
+ * "30s; 2m; Reading=10m; never".
+ */
+final class PresetStore {
+    static final String SOFFT_ROW_NAME = "uz_efir_screen_off";
+    static final int DEFAULT_TIMEOUT = 60000;
+    static final String DEFAULT_PRESETS = "30s; 2m; 10m; never";
+
+    private static final String PREFS_NAME = "presets";
+    private static final int VERSION = 1;
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_SAVED_TIMEOUT = "saved_timeout";
+    private static final String KEY_PRESETS = "presets";
+
+    private static PresetStore sInstance;
+
+    private final SharedPreferences mPrefs;
+    private int mSavedTimeout;
+    private String mPresetSpec;
+    private String[] mPresetNames;
+    private int[] mPresetValues;
+
+    /**
+     * Creates a store over the given preferences. settingsStore is only read
+     * on the very first run, to find the saved timeout of older versions.
+     */
+    PresetStore(SharedPreferences prefs, SettingsStore settingsStore) {
+        mPrefs = prefs;
+        if (prefs.getInt(KEY_VERSION, 0) < VERSION) {
+            migrate(settingsStore);
+        }
+        mSavedTimeout = prefs.getInt(KEY_SAVED_TIMEOUT, DEFAULT_TIMEOUT);
+        setPresetsInMemory(prefs.getString(KEY_PRESETS, DEFAULT_PRESETS));
+    }
+
+    /**
+     * Returns the process wide store. The first call reads the preferences
+     * file, and on the very first run also the old settings row, so prefer
+     * calling it off the main thread.
+     */
+    static synchronized PresetStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PresetStore(
+                    context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE),
+                    new ResolverSettingsStore(context.getContentResolver()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the process wide instance without ever loading it.
+     *
+     * @return the instance, or null if {@link #getInstance(Context)} has to load it first.
+     */
+    static synchronized PresetStore peekInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Copies the saved timeout from the Settings.System row used before
+     * version 1, falling back to the current timeout.
+     */
+    private void migrate(SettingsStore settingsStore) {
+        int saved = settingsStore.getInt(SettingsStore.TABLE_SYSTEM, SOFFT_ROW_NAME, SettingsCache.NOT_FOUND);
+        if (saved <= 0) {
+            saved = settingsStore.getInt(SettingsStore.TABLE_SYSTEM,
+                    Settings.System.SCREEN_OFF_TIMEOUT, SettingsCache.NOT_FOUND);
+        }
+        if (saved <= 0) {
+            // OK, give up and just set it as one minute!
+            saved = DEFAULT_TIMEOUT;
+        }
+        save(mPrefs.edit().putInt(KEY_SAVED_TIMEOUT, saved).putInt(KEY_VERSION, VERSION));
+    }
+
+    /**
+     * @return the timeout restored when "never time out" is turned off.
+     */
+    synchronized int getSavedTimeout() {
+        return mSavedTimeout;
+    }
+
+    synchronized void setSavedTimeout(int timeout) {
+        if (timeout <= 0 || timeout == mSavedTimeout) {
+            return;
+        }
+        mSavedTimeout = timeout;
+        save(mPrefs.edit().putInt(KEY_SAVED_TIMEOUT, timeout));
+    }
+
+    synchronized String getPresetSpec() {
+        return mPresetSpec;
+    }
+
+    /**
+     * @return preset names, in the user's order. Do not modify.
+     */
+    synchronized String[] getPresetNames() {
+        return mPresetNames;
+    }
+
+    /**
+     * @return preset timeouts in milliseconds, -1 for never. Do not modify.
+     */
+    synchronized int[] getPresetValues() {
+        return mPresetValues;
+    }
+
+    /**
+     * Replaces the presets.
+     *
+     * @throws IllegalArgumentException if the text is not valid.
+     */
+    synchronized void setPresets(String spec) {
+        setPresetsInMemory(spec);
+        save(mPrefs.edit().putString(KEY_PRESETS, spec));
+    }
+
+    private void setPresetsInMemory(String spec) {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        parsePresets(spec, names, values);
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("No presets");
+        }
+
+        mPresetSpec = spec;
+        mPresetNames = names.toArray(new String[names.size()]);
+        mPresetValues = new int[values.size()];
+        for (int i = 0; i < mPresetValues.length; i++) {
+            mPresetValues[i] = values.get(i);
+        }
+    }
+
+    /**
+     * Parses the textual form described in the class comment.
+     *
+     * @throws IllegalArgumentException if the text is not valid.
+     */
+    static void parsePresets(String spec, ArrayList<String> names, ArrayList<Integer> values) {
+        for (String presetSpec : spec.split(";")) {
+            presetSpec = presetSpec.trim();
+            if (presetSpec.length() == 0) {
+                continue;
+            }
+            int equals = presetSpec.indexOf('=');
+            String valueSpec = presetSpec.substring(equals + 1).trim();
+            String name = equals < 0 ? valueSpec : presetSpec.substring(0, equals).trim();
+            names.add(name);
+            values.add(parseTimeout(valueSpec));
+        }
+    }
+
+    /**
+     * Parses "never", or a number followed by 's' for seconds or 'm' for minutes.
+     * A bare number is in minutes.
+     */
+    static int parseTimeout(String valueSpec) {
+        if ("never".equalsIgnoreCase(valueSpec)) {
+            return -1;
+        }
+        int unit = 60 * 1000;
+        String number = valueSpec;
+        char last = valueSpec.length() > 0 ? Character.toLowerCase(valueSpec.charAt(valueSpec.length() - 1)) : 0;
+        if (last == 's' || last == 'm') {
+            unit = last == 's' ? 1000 : 60 * 1000;
+            number = valueSpec.substring(0, valueSpec.length() - 1).trim();
+        }
+        long value;
+        try {
+            // In long, so a value too big for milliseconds in an int is rejected, not wrapped
+            value = Integer.parseInt(number) * (long) unit;
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Bad timeout: " + valueSpec);
+        }
+        if (value <= 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad timeout: " + valueSpec);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Formats a timeout the way {@link #parseTimeout(String)} reads it.
+     */
+    static String formatTimeout(int timeout) {
+        if (timeout < 0) {
+            return "never";
+        }
+        if (timeout % (60 * 1000) == 0) {
+            return (timeout / (60 * 1000)) + "m";
+        }
+        return (timeout / 1000) + "s";
+    }
+
+    private static void save(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            // Write to disk in the background, the memory copy is already up to date
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * {@link SettingsStore} backed by the system settings provider.
+ * Rows are read with one query per table where the provider allows it. From
+ * API level 23 SettingsProvider only accepts "name=?" selections, so there
+ * every row is read on its own.
+ */
+final class ResolverSettingsStore implements SettingsStore {
+    private static final String TAG = "ResolverSettingsStore";
+    /** Whether SettingsProvider accepts any selection, not just "name=?" */
+    private static final boolean BATCH_QUERY = Build.VERSION.SDK_INT < Build.VERSION_CODES.M;
+    private static final String[] PROJECTION = {
+        Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE
+    };
+
+    private final ContentResolver mContentResolver;
+
+    ResolverSettingsStore(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    @Override
+    public int getInt(int table, String name, int defaultValue) {
+        PerfStats.countProviderRead();
+        if (table == TABLE_GLOBAL) {
+            return Settings.Global.getInt(mContentResolver, name, defaultValue);
+        }
+        return Settings.System.getInt(mContentResolver, name, defaultValue);
+    }
+
+    @Override
+    public void getInts(int table, String[] names, int[] values, int defaultValue) {
+        if (!BATCH_QUERY || names.length == 1) {
+            // A query would throw, or cost the same as getInt()
+            for (int i = 0; i < names.length; i++) {
+                values[i] = getInt(table, names[i], defaultValue);
+            }
+            return;
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            values[i] = defaultValue;
+        }
+
+        // One query for all rows instead of one getInt() call per row
+        StringBuilder selection = new StringBuilder(Settings.NameValueTable.NAME).append(" IN (");
+        for (int i = 0; i < names.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+        Uri uri = table == TABLE_GLOBAL ? Settings.Global.CONTENT_URI : Settings.System.CONTENT_URI;
+        Cursor cursor = null;
+        PerfStats.countProviderRead();
+        try {
+            cursor = mContentResolver.query(uri, PROJECTION, selection.toString(), names, null);
+        } catch (RuntimeException re) {
+            Log.w(TAG, "Can not query settings provider", re);
+        }
+
+        if (cursor == null) {
+            for (int i = 0; i < names.length; i++) {
+                values[i] = getInt(table, names[i], defaultValue);
+            }
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i].equals(name)) {
+                        values[i] = parseInt(cursor.getString(1), defaultValue);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void putInt(int table, String name, int value) {
+        PerfStats.countProviderWrite();
+        if (table == TABLE_GLOBAL) {
+            Settings.Global.putInt(mContentResolver, name, value);
+        } else {
+            Settings.System.putInt(mContentResolver, name, value);
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+}
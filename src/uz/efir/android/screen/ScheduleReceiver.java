@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * Applies the time-of-day {@link TimeoutSchedule}.
+ * Nothing runs between transitions: each run writes the timeout if it differs
+ * and sets a single non-wakeup alarm for the next transition.
+ * Also re-arms the alarm after a reboot or a clock change.
+ * The receiver is disabled in the manifest and only enabled while a schedule
+ * is set, see {@link #updateEnabled}.
+ */
+public class ScheduleReceiver extends BroadcastReceiver {
+    private static final String TAG = "ScheduleReceiver";
+    static final String KEY_SCHEDULE = "schedule";
+    private static final String ACTION_APPLY_SCHEDULE = "uz.efir.android.screen.action.APPLY_SCHEDULE";
+
+    // Last parsed schedule, parsing again only when the text changes
+    private static String sSpec;
+    private static TimeoutSchedule sSchedule = TimeoutSchedule.EMPTY;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String spec = PreferenceManager.getDefaultSharedPreferences(context).getString(KEY_SCHEDULE, null);
+        if (getSchedule(spec).isEmpty()) {
+            // Nothing to do, and no reason to be woken up again
+            setEnabled(context, false);
+            return;
+        }
+        if (!applySchedule(context, spec)) {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Keep the process alive until the queued write reaches the provider
+            final PendingResult result = goAsync();
+            SettingsCache.getInstance(context).runAfterWrites(new Runnable() {
+                @Override
+                public void run() {
+                    result.finish();
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets the timeout the schedule asks for right now and arms the alarm for
+     * the next transition. An empty or broken schedule cancels the alarm.
+     *
+     * @param context   The Context
+     * @param spec   The schedule text, see {@link TimeoutSchedule}
+     * @return true if the timeout was changed.
+     */
+    static boolean applySchedule(Context context, String spec) {
+        TimeoutSchedule schedule = getSchedule(spec);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent operation = PendingIntent.getBroadcast(context, 0 /* no requestCode */,
+                new Intent(ACTION_APPLY_SCHEDULE).setClass(context, ScheduleReceiver.class),
+                0 /* no flags */);
+        if (schedule.isEmpty()) {
+            alarmManager.cancel(operation);
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        int value = schedule.valueAt(now);
+        SettingsCache cache = SettingsCache.getInstance(context);
+        SettingsCache.Snapshot snapshot = cache.get();
+        if (value == TimeoutSchedule.VALUE_SAVED) {
+            value = PresetStore.getInstance(context).getSavedTimeout();
+        }
+        boolean changed = false;
+        if (snapshot.screenOffTimeout != value) {
+            changed = cache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, value);
+            WidgetProvider.updateWidget(context);
+        }
+
+        long next = schedule.nextTransitionMillis(now);
+        if (next < 0) {
+            alarmManager.cancel(operation);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Not a wakeup alarm, a transition while asleep is applied when the device wakes up
+            alarmManager.setExact(AlarmManager.RTC, next, operation);
+        } else {
+            alarmManager.set(AlarmManager.RTC, next, operation);
+        }
+        return changed;
+    }
+
+    /**
+     * Enables the receiver if the given schedule is set, disables it otherwise.
+     *
+     * @param context   The Context
+     * @param spec   The schedule about to be saved
+     */
+    static void updateEnabled(Context context, String spec) {
+        setEnabled(context, !getSchedule(spec).isEmpty());
+    }
+
+    private static void setEnabled(Context context, boolean enabled) {
+        PackageManager pm = context.getPackageManager();
+        if (pm != null) {
+            pm.setComponentEnabledSetting(new ComponentName(context, ScheduleReceiver.class),
+                    enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                            : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                    PackageManager.DONT_KILL_APP);
+        }
+    }
+
+    private static synchronized TimeoutSchedule getSchedule(String spec) {
+        if (spec == null ? sSpec != null : !spec.equals(sSpec)) {
+            try {
+                sSchedule = TimeoutSchedule.parse(spec);
+            } catch (IllegalArgumentException iae) {
+                Log.w(TAG, "Ignoring schedule: " + iae.getMessage());
+                sSchedule = TimeoutSchedule.EMPTY;
+            }
+            sSpec = spec;
+        }
+        return sSchedule;
+    }
+}
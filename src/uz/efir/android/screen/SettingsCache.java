@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * In-process snapshot of the system settings rows SOFFT cares about.
+ * SOFFT's own saved timeout lives in {@link PresetStore}.
+ * The snapshot is filled from the provider the first time it is needed and
+ * is reloaded on the writer thread whenever one of the rows changes, so that
+ * the widget, the tiles and the preference screen do not have to hit the
+ * settings provider on every refresh, nor wait for it once it was loaded.
+ * Writes update the snapshot right away and reach the provider later through
+ * {@link SettingsWriter}.
+ */
+final class SettingsCache {
+    private static final String TAG = "SettingsCache";
+    /** Marks a row that does not exist in the provider. */
+    static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    /** The rows kept in the snapshot, each read from the table it lives in */
+    private static final String[] ROWS = {
+        Settings.System.SCREEN_OFF_TIMEOUT, Settings.System.STAY_ON_WHILE_PLUGGED_IN
+    };
+
+    private static SettingsCache sInstance;
+
+    /**
+     * Told about every snapshot loaded from the provider, on the writer thread.
+     */
+    interface LoadListener {
+        void onLoaded(Snapshot snapshot);
+    }
+
+    private final SettingsStore mStore;
+    private final SettingsCapabilities mCapabilities;
+    private final SettingsWriter mWriter;
+    private volatile LoadListener mLoadListener;
+    private volatile Snapshot mSnapshot;
+    /** Bumped by every write, a reload started before one is out of date. Guarded by this. */
+    private int mGeneration;
+
+    /**
+     * Immutable copy of the cached rows.
+     */
+    static final class Snapshot {
+        final int screenOffTimeout;
+        final int stayOn;
+
+        Snapshot(int screenOffTimeout, int stayOn) {
+            this.screenOffTimeout = screenOffTimeout;
+            this.stayOn = stayOn;
+        }
+
+        /**
+         * @return true if SCREEN_OFF_TIMEOUT is set to never time out.
+         */
+        boolean isNeverTimeout() {
+            return screenOffTimeout != NOT_FOUND && screenOffTimeout < 0;
+        }
+
+        /**
+         * @return true if STAY_ON_WHILE_PLUGGED_IN is on.
+         */
+        boolean isStayOn() {
+            return stayOn > 0;
+        }
+    }
+
+    /**
+     * Creates a cache over the given store. Nothing invalidates it on its own,
+     * see {@link #getInstance(Context)} for the one that follows the provider.
+     */
+    SettingsCache(SettingsStore store, SettingsCapabilities capabilities) {
+        this(store, capabilities, new SettingsWriter(store, capabilities));
+    }
+
+    /**
+     * Creates a cache writing through the given writer, which must write to the same store.
+     */
+    SettingsCache(SettingsStore store, SettingsCapabilities capabilities, SettingsWriter writer) {
+        mStore = store;
+        mCapabilities = capabilities;
+        mWriter = writer;
+    }
+
+    /**
+     * Returns the process wide cache. The observer lives as long as the process does.
+     * Makes no binder call itself: the permission checks and the observer
+     * registration are queued on the writer thread, ahead of any load.
+     */
+    static synchronized SettingsCache getInstance(Context context) {
+        if (sInstance == null) {
+            final ContentResolver contentResolver = context.getContentResolver();
+            final SettingsCapabilities capabilities = SettingsCapabilities.probe(context);
+            final SettingsCache cache = new SettingsCache(new ResolverSettingsStore(contentResolver),
+                    capabilities);
+            // Keeps the usage statistics, the file is only opened on the writer thread
+            ChangeLog changeLog = ChangeLog.getInstance(context);
+            cache.mWriter.setWriteListener(changeLog);
+            cache.setLoadListener(changeLog);
+            cache.mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    capabilities.refresh();
+                    ContentObserver observer = new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            cache.onRowsChanged();
+                        }
+                    };
+                    for (String row : ROWS) {
+                        contentResolver.registerContentObserver(capabilities.getUriFor(row), false,
+                                observer);
+                    }
+                    if (cache.peek() != null) {
+                        // Loaded on the calling thread before the observer was in place
+                        cache.onRowsChanged();
+                    }
+                }
+            });
+            sInstance = cache;
+        }
+        return sInstance;
+    }
+
+    void setLoadListener(LoadListener listener) {
+        mLoadListener = listener;
+    }
+
+    /**
+     * @return where each row lives and whether it can be written.
+     */
+    SettingsCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    /**
+     * @return the rows kept in the snapshot. Do not modify.
+     */
+    static String[] getRows() {
+        return ROWS;
+    }
+
+    /**
+     * Returns the current snapshot, querying the provider only if the
+     * previous one was invalidated.
+     */
+    Snapshot get() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            snapshot = load();
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the current snapshot without ever touching the provider.
+     *
+     * @return the snapshot, or null if it has to be loaded first.
+     */
+    Snapshot peek() {
+        return mSnapshot;
+    }
+
+    /**
+     * Loads the snapshot on the writer thread, then runs the callback there.
+     */
+    void loadAsync(final Runnable callback) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                get();
+                callback.run();
+            }
+        });
+    }
+
+    /**
+     * Called when one of the rows changed in the provider, by SOFFT or anyone else.
+     * The snapshot is reloaded on the writer thread and kept until then, so
+     * {@link #get()} never has to wait for the provider after SOFFT's own writes,
+     * whose values the snapshot already holds.
+     */
+    void onRowsChanged() {
+        if (mSnapshot == null) {
+            // Nothing loaded yet, the next get() reads the current values anyway
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                int generation;
+                synchronized (SettingsCache.this) {
+                    generation = mGeneration;
+                }
+                Snapshot snapshot = load();
+                synchronized (SettingsCache.this) {
+                    // A write since the load began already updated the snapshot,
+                    // its own change notification reloads again
+                    if (generation == mGeneration) {
+                        mSnapshot = snapshot;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a write of the row to the table it lives in and updates the
+     * snapshot immediately, so the UI can show the new state before the write
+     * lands. A row SOFFT may not write is left alone.
+     *
+     * @return false if the row can not be written.
+     */
+    synchronized boolean putInt(String name, int value) {
+        if (!mCapabilities.canWrite(name)) {
+            Log.w(TAG, "No permission to write " + name);
+            return false;
+        }
+        mWriter.putInt(name, value);
+        mGeneration++;
+        Snapshot old = mSnapshot;
+        if (old == null) {
+            return true;
+        }
+        if (Settings.System.SCREEN_OFF_TIMEOUT.equals(name)) {
+            mSnapshot = new Snapshot(value, old.stayOn);
+        } else if (Settings.System.STAY_ON_WHILE_PLUGGED_IN.equals(name)) {
+            mSnapshot = new Snapshot(old.screenOffTimeout, value);
+        } else {
+            mSnapshot = null;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the callback on the writer thread once every queued write is done.
+     *
+     * @see SettingsWriter#runAfterWrites(Runnable)
+     */
+    void runAfterWrites(Runnable callback) {
+        mWriter.runAfterWrites(callback);
+    }
+
+    private Snapshot load() {
+        PerfStats.beginSection("SettingsCache.load");
+        long start = System.nanoTime();
+        final Snapshot snapshot;
+        try {
+            snapshot = loadFromStore();
+        } finally {
+            PerfStats.record(PerfStats.PHASE_READ, start);
+            PerfStats.endSection();
+        }
+        final LoadListener listener = mLoadListener;
+        if (listener != null) {
+            // Always on the writer thread, get() may have loaded on any other
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onLoaded(snapshot);
+                }
+            });
+        }
+        return snapshot;
+    }
+
+    private Snapshot loadFromStore() {
+        int[] values = new int[ROWS.length];
+        // One batch per table that holds any of the rows
+        for (int table = SettingsStore.TABLE_SYSTEM; table <= SettingsStore.TABLE_GLOBAL; table++) {
+            int count = 0;
+            for (String row : ROWS) {
+                if (mCapabilities.getTable(row) == table) {
+                    count++;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            String[] names = new String[count];
+            int[] indexes = new int[count];
+            count = 0;
+            for (int i = 0; i < ROWS.length; i++) {
+                if (mCapabilities.getTable(ROWS[i]) == table) {
+                    names[count] = ROWS[i];
+                    indexes[count++] = i;
+                }
+            }
+            int[] tableValues = new int[count];
+            mStore.getInts(table, names, tableValues, NOT_FOUND);
+            for (int i = 0; i < count; i++) {
+                // Writes that have not landed yet win over what the provider still has
+                values[indexes[i]] = mWriter.getPending(names[i], tableValues[i]);
+            }
+        }
+
+        int stayOn = values[1] == NOT_FOUND ? 0 : values[1];
+        return new Snapshot(values[0], stayOn);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.Settings;
+
+/**
+ * Which settings table each row SOFFT uses lives in on this device, and
+ * whether SOFFT may write to it. Worked out once, without any provider call,
+ * so that reads and writes go straight to the right table and writes that
+ * would be refused are not attempted.
+ *
+ * STAY_ON_WHILE_PLUGGED_IN moved to Settings.Global in API level 17, where
+ * writing it needs WRITE_SECURE_SETTINGS, granted with
+ * "adb shell pm grant uz.efir.android.screen android.permission.WRITE_SECURE_SETTINGS".
+ * From API level 23 writing Settings.System needs the user's approval.
+ * The permission checks are binder calls, so they are left to
+ * {@link #refresh()}, which callers run off the main thread, or to the first
+ * {@link #canWrite(String)} if that comes earlier.
+ */
+final class SettingsCapabilities {
+    private final Context mContext;
+    private final boolean mStayOnGlobal;
+    // Both can be granted while the process runs, see refresh()
+    private volatile boolean mSystemWritable;
+    private volatile boolean mGlobalWritable;
+    private volatile boolean mChecked;
+
+    /**
+     * Fixed capabilities, for use with {@link InMemorySettingsStore}.
+     */
+    SettingsCapabilities(boolean stayOnGlobal, boolean systemWritable, boolean globalWritable) {
+        mContext = null;
+        mStayOnGlobal = stayOnGlobal;
+        mSystemWritable = systemWritable;
+        mGlobalWritable = globalWritable;
+        mChecked = true;
+    }
+
+    private SettingsCapabilities(Context context) {
+        mContext = context.getApplicationContext();
+        mStayOnGlobal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+    }
+
+    /**
+     * Looks at the platform only, the permissions held are checked later.
+     */
+    static SettingsCapabilities probe(Context context) {
+        return new SettingsCapabilities(context);
+    }
+
+    /**
+     * Checks the permissions again, for example when coming back from the
+     * system screen where the user may have granted them.
+     *
+     * @return true if a permission was granted or revoked since the last check.
+     */
+    boolean refresh() {
+        if (mContext == null) {
+            return false;
+        }
+        boolean systemWritable = canWriteSystem(mContext);
+        boolean globalWritable = mContext.checkCallingOrSelfPermission(
+                Manifest.permission.WRITE_SECURE_SETTINGS) == PackageManager.PERMISSION_GRANTED;
+        boolean changed = systemWritable != mSystemWritable || globalWritable != mGlobalWritable;
+        mSystemWritable = systemWritable;
+        mGlobalWritable = globalWritable;
+        mChecked = true;
+        return changed;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static boolean canWriteSystem(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            // Granted at install time with WRITE_SETTINGS
+            return true;
+        }
+        return Settings.System.canWrite(context);
+    }
+
+    /**
+     * @return the {@link SettingsStore} table holding the row.
+     */
+    int getTable(String name) {
+        if (mStayOnGlobal && Settings.System.STAY_ON_WHILE_PLUGGED_IN.equals(name)) {
+            return SettingsStore.TABLE_GLOBAL;
+        }
+        return SettingsStore.TABLE_SYSTEM;
+    }
+
+    boolean canWrite(String name) {
+        if (!mChecked) {
+            // Nobody refreshed yet, check now rather than refuse the write
+            refresh();
+        }
+        return getTable(name) == SettingsStore.TABLE_GLOBAL ? mGlobalWritable : mSystemWritable;
+    }
+
+    /**
+     * @return the content URI of the row, for observers and job triggers.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    Uri getUriFor(String name) {
+        if (getTable(name) == SettingsStore.TABLE_GLOBAL) {
+            return Settings.Global.getUriFor(name);
+        }
+        return Settings.System.getUriFor(name);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+/**
+ * Storage of integer settings rows.
+ * The real backend is {@link ResolverSettingsStore}; {@link InMemorySettingsStore}
+ * keeps the rows in a map so the toggle logic can run off-device.
+ */
+interface SettingsStore {
+    /** Settings.System */
+    int TABLE_SYSTEM = 0;
+    /** Settings.Global, API level 17 and up */
+    int TABLE_GLOBAL = 1;
+
+    /**
+     * Reads one row.
+     *
+     * @return the value of the row, or defaultValue if it does not exist.
+     */
+    int getInt(int table, String name, int defaultValue);
+
+    /**
+     * Reads several rows of the same table, in one go where the backend can.
+     * Rows that do not exist get defaultValue.
+     *
+     * @param values   Receives the value of names[i] at index i
+     */
+    void getInts(int table, String[] names, int[] values, int defaultValue);
+
+    /**
+     * Writes one row.
+     */
+    void putInt(int table, String name, int value);
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Keeps the widget in sync when the timeout or stay-on setting is changed
+ * outside SOFFT, for example in the system Settings app.
+ * The job only runs when one of the settings rows changes: it reloads the
+ * cache and lets the widget send whatever differs from what it last pushed,
+ * which is nothing for SOFFT's own writes. Content triggers fire once, so
+ * the job schedules itself again every time, right before it finishes:
+ * scheduling the same job ID while it runs would stop it.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+public class SettingsSyncJobService extends JobService {
+    private static final String TAG = "SettingsSyncJobService";
+    private static final int JOB_ID = 1;
+    /** Settings changes often come in bursts, wait for them to settle. */
+    private static final long UPDATE_DELAY_MS = 500;
+    private static final long MAX_DELAY_MS = 2000;
+
+    private final Handler mHandler = new Handler();
+
+    /**
+     * Arms the content triggers, a no-op before API level 24.
+     */
+    static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        SettingsCapabilities capabilities = SettingsCache.getInstance(context).getCapabilities();
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, SettingsSyncJobService.class));
+        for (String row : SettingsCache.getRows()) {
+            builder.addTriggerContentUri(new JobInfo.TriggerContentUri(capabilities.getUriFor(row), 0));
+        }
+        builder.setTriggerContentUpdateDelay(UPDATE_DELAY_MS)
+                .setTriggerContentMaxDelay(MAX_DELAY_MS);
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler.schedule(builder.build()) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "Could not schedule the settings sync job");
+        }
+    }
+
+    static void cancel(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.cancel(JOB_ID);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final SettingsCache cache = SettingsCache.getInstance(this);
+        // Reloaded in the background, a tap meanwhile still sees the previous values
+        cache.onRowsChanged();
+        cache.loadAsync(new Runnable() {
+            @Override
+            public void run() {
+                // Loaded on the writer thread, compare and push on the main thread
+                PresetStore.getInstance(SettingsSyncJobService.this);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        WidgetProvider.updateWidget(SettingsSyncJobService.this);
+                        WidgetUpdateScheduler.getInstance(SettingsSyncJobService.this)
+                                .runAfterUpdate(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        // Changes since the reload began trigger the new job
+                                        schedule(SettingsSyncJobService.this);
+                                        jobFinished(params, false);
+                                    }
+                                });
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Stopped before it could schedule itself again, let the system retry it.
+        // Ignored when the job was cancelled, the widget is gone then
+        return true;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes settings rows on a single background thread.
+ * Writes to the same row that arrive within {@link #MERGE_WINDOW_MS} of each
+ * other are merged, so only the last value reaches the settings provider.
+ */
+final class SettingsWriter {
+    private static final String TAG = "SettingsWriter";
+    /** How long a write waits for a newer value of the same row. */
+    private static final long MERGE_WINDOW_MS = 150;
+
+    /**
+     * Told about every row that reached the settings provider, on the writer thread.
+     */
+    interface WriteListener {
+        void onWritten(String name, int value);
+    }
+
+    private final SettingsStore mStore;
+    private final SettingsCapabilities mCapabilities;
+    private volatile WriteListener mListener;
+    private final ScheduledExecutorService mExecutor;
+    private final long mMergeWindowMs;
+    // Guarded by itself; insertion order is the order rows are written in
+    private final LinkedHashMap<String, Integer> mPending = new LinkedHashMap<String, Integer>();
+    private final ArrayList<Runnable> mCallbacks = new ArrayList<Runnable>();
+    private boolean mScheduled;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    SettingsWriter(SettingsStore store, SettingsCapabilities capabilities) {
+        this(store, capabilities, newBackgroundExecutor(), MERGE_WINDOW_MS);
+    }
+
+    /**
+     * Creates a writer running on the given executor, which must run one task at a time.
+     *
+     * @param mergeWindowMs   How long a write waits for a newer value of the same row
+     */
+    SettingsWriter(SettingsStore store, SettingsCapabilities capabilities,
+            ScheduledExecutorService executor, long mergeWindowMs) {
+        mStore = store;
+        mCapabilities = capabilities;
+        mExecutor = executor;
+        mMergeWindowMs = mergeWindowMs;
+    }
+
+    private static ScheduledExecutorService newBackgroundExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    void setWriteListener(WriteListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues a write. A pending write to the same row is replaced, not repeated.
+     */
+    void putInt(String name, int value) {
+        synchronized (mPending) {
+            mPending.put(name, value);
+            if (!mScheduled) {
+                mScheduled = true;
+                mExecutor.schedule(mDrain, mMergeWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Returns the value still waiting to be written to the row, or the default
+     * if there is none. Used to keep freshly read values from going back in time.
+     */
+    int getPending(String name, int defaultValue) {
+        synchronized (mPending) {
+            Integer value = mPending.get(name);
+            return value == null ? defaultValue : value;
+        }
+    }
+
+    /**
+     * Runs the callback on the writer thread once every write queued so far
+     * has reached the settings provider.
+     */
+    void runAfterWrites(Runnable callback) {
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                mExecutor.execute(callback);
+            } else {
+                mCallbacks.add(callback);
+            }
+        }
+    }
+
+    /**
+     * Runs other background work on the writer thread.
+     */
+    void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    private void drain() {
+        Map<String, Integer> writes;
+        synchronized (mPending) {
+            writes = new LinkedHashMap<String, Integer>(mPending);
+            mScheduled = false;
+        }
+
+        WriteListener listener = mListener;
+        for (Map.Entry<String, Integer> entry : writes.entrySet()) {
+            PerfStats.beginSection("SettingsWriter.write");
+            long start = System.nanoTime();
+            try {
+                mStore.putInt(mCapabilities.getTable(entry.getKey()), entry.getKey(), entry.getValue());
+                if (listener != null) {
+                    listener.onWritten(entry.getKey(), entry.getValue());
+                }
+            } catch (RuntimeException re) {
+                Log.e(TAG, "Can not write " + entry.getKey(), re);
+            } finally {
+                PerfStats.record(PerfStats.PHASE_WRITE, start);
+                PerfStats.endSection();
+            }
+        }
+
+        ArrayList<Runnable> callbacks = null;
+        synchronized (mPending) {
+            for (Map.Entry<String, Integer> entry : writes.entrySet()) {
+                // Keep the row if a newer value arrived while we were writing
+                if (entry.getValue().equals(mPending.get(entry.getKey()))) {
+                    mPending.remove(entry.getKey());
+                }
+            }
+            if (mPending.isEmpty() && !mCallbacks.isEmpty()) {
+                callbacks = new ArrayList<Runnable>(mCallbacks);
+                mCallbacks.clear();
+            }
+        }
+
+        if (callbacks != null) {
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    }
+}
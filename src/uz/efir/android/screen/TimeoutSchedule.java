@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Weekly time-of-day timeout schedule compiled into a sorted transition table.
+ * Every entry says which timeout is in effect from a given minute of the week
+ * until the next entry, so both the current value and the next change are a
+ * binary search away. The table does not read the clock itself; callers pass
+ * the time in, which keeps it usable with a fake clock.
+ *
+ * A schedule is written as rules separated by ';', each one
+ * "days start-end value", for example "12345 09:00-17:00 never".
+ * Days are digits, 1 is Monday and 7 is Sunday. An end before the start
+ * runs past midnight. The value is in minutes, or "never".
+ * Outside of all rules the saved default timeout applies.
+ */
+final class TimeoutSchedule {
+    /** Stands for the saved default timeout, see {@link PresetStore#getSavedTimeout()}. */
+    static final int VALUE_SAVED = Integer.MIN_VALUE;
+    static final int MINUTES_PER_DAY = 24 * 60;
+    static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+
+    static final TimeoutSchedule EMPTY = new TimeoutSchedule(new int[] { 0 }, new int[] { VALUE_SAVED });
+
+    /** Minute of the week each entry starts at, ascending, the first one is 0. */
+    private final int[] mMinutes;
+    /** Timeout in effect from the matching minute on. */
+    private final int[] mValues;
+
+    /**
+     * One "days start-end value" rule.
+     */
+    static final class Rule {
+        /** Bit 0 is Monday, bit 6 is Sunday. */
+        final int days;
+        final int startMinute;
+        final int endMinute;
+        final int value;
+
+        Rule(int days, int startMinute, int endMinute, int value) {
+            this.days = days;
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+            this.value = value;
+        }
+    }
+
+    private TimeoutSchedule(int[] minutes, int[] values) {
+        mMinutes = minutes;
+        mValues = values;
+    }
+
+    /**
+     * Parses the textual form described in the class comment.
+     *
+     * @throws IllegalArgumentException if the text is not a valid schedule.
+     */
+    static TimeoutSchedule parse(String spec) {
+        if (spec == null || spec.trim().length() == 0) {
+            return EMPTY;
+        }
+
+        ArrayList<Rule> rules = new ArrayList<Rule>();
+        for (String ruleSpec : spec.split(";")) {
+            ruleSpec = ruleSpec.trim();
+            if (ruleSpec.length() == 0) {
+                continue;
+            }
+            String[] parts = ruleSpec.split("\\s+");
+            String[] times = parts.length == 3 ? parts[1].split("-") : null;
+            if (times == null || times.length != 2) {
+                throw new IllegalArgumentException("Bad rule: " + ruleSpec);
+            }
+
+            int days = 0;
+            for (int i = 0; i < parts[0].length(); i++) {
+                int day = parts[0].charAt(i) - '1';
+                if (day < 0 || day > 6) {
+                    throw new IllegalArgumentException("Bad days: " + parts[0]);
+                }
+                days |= 1 << day;
+            }
+
+            long value;
+            if ("never".equalsIgnoreCase(parts[2])) {
+                value = -1;
+            } else {
+                try {
+                    // Minutes beyond an int of milliseconds are an error, see PresetStore.parseTimeout()
+                    value = Integer.parseInt(parts[2]) * 60 * 1000L;
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("Bad value: " + parts[2]);
+                }
+                if (value <= 0 || value > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Bad value: " + parts[2]);
+                }
+            }
+            rules.add(new Rule(days, parseMinute(times[0]), parseMinute(times[1]), (int) value));
+        }
+        return compile(rules);
+    }
+
+    private static int parseMinute(String time) {
+        int colon = time.indexOf(':');
+        try {
+            int hours = Integer.parseInt(colon < 0 ? time : time.substring(0, colon));
+            int minutes = colon < 0 ? 0 : Integer.parseInt(time.substring(colon + 1));
+            int minute = hours * 60 + minutes;
+            if (hours >= 0 && minutes >= 0 && minutes < 60 && minute <= MINUTES_PER_DAY) {
+                return minute;
+            }
+        } catch (NumberFormatException nfe) {
+            // Fall through
+        }
+        throw new IllegalArgumentException("Bad time: " + time);
+    }
+
+    /**
+     * Builds the transition table. Where rules overlap the earlier rule wins.
+     */
+    static TimeoutSchedule compile(List<Rule> rules) {
+        // Every rule turns into [start, end) intervals in minutes of the week
+        ArrayList<int[]> intervals = new ArrayList<int[]>();
+        for (Rule rule : rules) {
+            int length = rule.endMinute - rule.startMinute;
+            if (length <= 0) {
+                length += MINUTES_PER_DAY;
+            }
+            for (int day = 0; day < 7; day++) {
+                if ((rule.days & (1 << day)) == 0) {
+                    continue;
+                }
+                int start = day * MINUTES_PER_DAY + rule.startMinute;
+                int end = start + length;
+                if (end > MINUTES_PER_WEEK) {
+                    // Sunday night rules wrap around into Monday morning
+                    intervals.add(new int[] { start, MINUTES_PER_WEEK, rule.value });
+                    intervals.add(new int[] { 0, end - MINUTES_PER_WEEK, rule.value });
+                } else {
+                    intervals.add(new int[] { start, end, rule.value });
+                }
+            }
+        }
+        if (intervals.isEmpty()) {
+            return EMPTY;
+        }
+
+        int[] boundaries = new int[intervals.size() * 2 + 1];
+        int count = 0;
+        boundaries[count++] = 0;
+        for (int[] interval : intervals) {
+            boundaries[count++] = interval[0];
+            if (interval[1] < MINUTES_PER_WEEK) {
+                boundaries[count++] = interval[1];
+            }
+        }
+        Arrays.sort(boundaries, 0, count);
+
+        int[] minutes = new int[count];
+        int[] values = new int[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int minute = boundaries[i];
+            if (i > 0 && minute == boundaries[i - 1]) {
+                continue;
+            }
+            int value = VALUE_SAVED;
+            for (int[] interval : intervals) {
+                if (interval[0] <= minute && minute < interval[1]) {
+                    value = interval[2];
+                    break;
+                }
+            }
+            // Only keep real changes; minute 0 always starts the table
+            if (size == 0 || values[size - 1] != value) {
+                minutes[size] = minute;
+                values[size] = value;
+                size++;
+            }
+        }
+        int[] tableMinutes = new int[size];
+        int[] tableValues = new int[size];
+        System.arraycopy(minutes, 0, tableMinutes, 0, size);
+        System.arraycopy(values, 0, tableValues, 0, size);
+        return new TimeoutSchedule(tableMinutes, tableValues);
+    }
+
+    /**
+     * @return true if the schedule never changes the timeout.
+     */
+    boolean isEmpty() {
+        return mValues.length == 1 && mValues[0] == VALUE_SAVED;
+    }
+
+    /**
+     * @return the number of entries in the transition table.
+     */
+    int size() {
+        return mMinutes.length;
+    }
+
+    /**
+     * @return timeout in effect at the given minute of the week, may be {@link #VALUE_SAVED}.
+     */
+    int valueAt(int minuteOfWeek) {
+        return mValues[indexOf(minuteOfWeek)];
+    }
+
+    /**
+     * @return timeout in effect at the given wall clock time, may be {@link #VALUE_SAVED}.
+     */
+    int valueAt(long timeMillis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeMillis);
+        return valueAt(minuteOfWeek(calendar));
+    }
+
+    /**
+     * @return minutes from the given minute of the week until the timeout
+     *      changes, or -1 if it never does.
+     */
+    int minutesUntilNextTransition(int minuteOfWeek) {
+        int size = mMinutes.length;
+        if (size == 1) {
+            return -1;
+        }
+        int index = indexOf(minuteOfWeek);
+        int next = index + 1;
+        if (next == size) {
+            // Entry 0 is only a change if the week does not end on the same value
+            next = mValues[0] != mValues[size - 1] ? 0 : 1;
+        }
+        int delta = mMinutes[next] - minuteOfWeek;
+        return delta > 0 ? delta : delta + MINUTES_PER_WEEK;
+    }
+
+    /**
+     * @return wall clock time of the next change after the given time, or -1 if
+     *      the timeout never changes.
+     */
+    long nextTransitionMillis(long timeMillis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeMillis);
+        int minuteOfWeek = minuteOfWeek(calendar);
+        int delta = minutesUntilNextTransition(minuteOfWeek);
+        if (delta < 0) {
+            return -1;
+        }
+        // The table is in wall clock minutes, so move the calendar fields rather
+        // than adding elapsed time, which would be off by an hour across a DST change
+        int target = minuteOfWeek + delta;
+        calendar.add(Calendar.DAY_OF_MONTH, target / MINUTES_PER_DAY - minuteOfWeek / MINUTES_PER_DAY);
+        target %= MINUTES_PER_DAY;
+        calendar.set(Calendar.HOUR_OF_DAY, target / 60);
+        calendar.set(Calendar.MINUTE, target % 60);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * @return minutes since Monday 00:00 in the calendar's time zone.
+     */
+    static int minuteOfWeek(Calendar calendar) {
+        // Calendar counts from Sunday = 1, we count from Monday = 0
+        int day = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        return day * MINUTES_PER_DAY + calendar.get(Calendar.HOUR_OF_DAY) * 60
+                + calendar.get(Calendar.MINUTE);
+    }
+
+    private int indexOf(int minuteOfWeek) {
+        int index = Arrays.binarySearch(mMinutes, minuteOfWeek);
+        // Not found gives -(insertion point) - 1, the entry before it is in effect
+        return index >= 0 ? index : -index - 2;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+
+/**
+ * Quick Settings tile toggling one of the widget modes.
+ * A tap is handled right here: the cached settings are toggled with
+ * {@link WidgetProvider#toggleMode} and the tile is redrawn from the cache,
+ * without a broadcast or RemoteViews on the way. Nothing on the main thread
+ * reads the provider: a tap arriving before the settings are loaded is
+ * handled once they are.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+abstract class ToggleTileService extends TileService {
+    private SettingsCache mSettingsCache;
+    private Handler mHandler;
+
+    /**
+     * @return the widget button this tile stands for.
+     */
+    abstract int getButton();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mSettingsCache = SettingsCache.getInstance(this);
+        mHandler = new Handler();
+    }
+
+    @Override
+    public void onStartListening() {
+        SettingsCache.Snapshot snapshot = mSettingsCache.peek();
+        if (snapshot != null) {
+            updateTile(snapshot);
+            return;
+        }
+
+        // Cold process: keep the provider read off the main thread
+        mSettingsCache.loadAsync(new Runnable() {
+            @Override
+            public void run() {
+                final SettingsCache.Snapshot loaded = mSettingsCache.get();
+                PresetStore.getInstance(ToggleTileService.this);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateTile(loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onClick() {
+        PerfStats.markStart(PerfStats.PHASE_TILE_TAP);
+        final PresetStore presets = PresetStore.peekInstance();
+        if (presets == null || mSettingsCache.peek() == null) {
+            // Cold process: load off the main thread, then handle the tap
+            mSettingsCache.loadAsync(new Runnable() {
+                @Override
+                public void run() {
+                    final PresetStore loaded = PresetStore.getInstance(ToggleTileService.this);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            toggle(loaded);
+                        }
+                    });
+                }
+            });
+            return;
+        }
+        toggle(presets);
+    }
+
+    private void toggle(PresetStore presets) {
+        PerfStats.beginSection("ToggleTileService.onClick");
+        try {
+            WidgetProvider.toggleMode(this, mSettingsCache, presets, getButton());
+            updateTile(mSettingsCache.get());
+        } finally {
+            PerfStats.endSection();
+            PerfStats.markEnd(PerfStats.PHASE_TILE_TAP);
+        }
+        // The widget follows in the background, the tile already shows the new state
+        WidgetProvider.updateWidget(this);
+    }
+
+    private void updateTile(SettingsCache.Snapshot snapshot) {
+        Tile tile = getQsTile();
+        if (tile == null) {
+            // Not listening any more
+            return;
+        }
+        if (!mSettingsCache.getCapabilities().canWrite(WidgetState.getSettingName(getButton()))) {
+            tile.setState(Tile.STATE_UNAVAILABLE);
+        } else {
+            tile.setState(WidgetState.getMode(snapshot, getButton())
+                    ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+        }
+        tile.updateTile();
+    }
+}
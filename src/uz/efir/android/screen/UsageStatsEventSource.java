@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.annotation.TargetApi;
+import android.app.AppOpsManager;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * {@link ForegroundEventSource} reading the platform usage events.
+ * Needs API level 21 and the "Usage access" grant; without the grant
+ * it simply sees no events.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class UsageStatsEventSource implements ForegroundEventSource {
+    private final UsageStatsManager mUsageStatsManager;
+
+    UsageStatsEventSource(Context context) {
+        mUsageStatsManager = (UsageStatsManager) context.getSystemService(Context.USAGE_STATS_SERVICE);
+    }
+
+    /**
+     * @return true if the user granted SOFFT usage access.
+     */
+    static boolean hasAccess(Context context) {
+        AppOpsManager appOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        return appOps != null && appOps.checkOpNoThrow(AppOpsManager.OPSTR_GET_USAGE_STATS,
+                Process.myUid(), context.getPackageName()) == AppOpsManager.MODE_ALLOWED;
+    }
+
+    @Override
+    public String getLastForegroundPackage(long beginMillis, long endMillis) {
+        if (mUsageStatsManager == null) {
+            return null;
+        }
+        UsageEvents events = mUsageStatsManager.queryEvents(beginMillis, endMillis);
+        if (events == null) {
+            return null;
+        }
+
+        // One event object is reused for the whole batch
+        UsageEvents.Event event = new UsageEvents.Event();
+        String packageName = null;
+        while (events.hasNextEvent()) {
+            events.getNextEvent(event);
+            if (event.getEventType() == UsageEvents.Event.MOVE_TO_FOREGROUND) {
+                packageName = event.getPackageName();
+            }
+        }
+        return packageName;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.SparseIntArray;
+
+import java.util.Map;
+
+/**
+ * Per widget instance configuration: which buttons the instance shows, and
+ * whether its "never time out" button is timed, see {@link KeepAwakeReceiver}.
+ * Kept in app-private SharedPreferences and loaded into a sparse map once,
+ * keyed by app widget id. Also remembers the widget state last sent to the
+ * widget host, so that a new process can tell whether anything changed.
+ */
+final class WidgetConfigStore {
+    // Same bits as the widget buttons, see WidgetProvider
+    static final int SHOW_NEVER_TIMEOUT = 1 << 0;
+    static final int SHOW_STAY_ON = 1 << 1;
+    static final int SHOW_PRESET = 1 << 2;
+    static final int SHOW_ALL = SHOW_NEVER_TIMEOUT | SHOW_STAY_ON | SHOW_PRESET;
+    /** The "never time out" button only keeps the screen on for a while */
+    static final int TIMED_NEVER_TIMEOUT = 1 << 3;
+    private static final int CONFIG_ALL = SHOW_ALL | TIMED_NEVER_TIMEOUT;
+
+    private static final String PREFS_NAME = "widgets";
+    private static final String KEY_PREFIX = "config_";
+    private static final String KEY_PUSHED_STATE = "pushed_state";
+
+    private static WidgetConfigStore sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final SparseIntArray mConfigs = new SparseIntArray();
+    private boolean mPushedStateLoaded;
+    private int mPushedState;
+
+    private WidgetConfigStore(SharedPreferences prefs) {
+        mPrefs = prefs;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(KEY_PREFIX) && entry.getValue() instanceof Integer) {
+                try {
+                    int appWidgetId = Integer.parseInt(key.substring(KEY_PREFIX.length()));
+                    mConfigs.put(appWidgetId, (Integer) entry.getValue());
+                } catch (NumberFormatException nfe) {
+                    // Not ours, leave it alone
+                }
+            }
+        }
+    }
+
+    static synchronized WidgetConfigStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetConfigStore(
+                    context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the configuration bits of the instance, {@link #SHOW_ALL} if it was never configured.
+     */
+    synchronized int getConfig(int appWidgetId) {
+        return mConfigs.get(appWidgetId, SHOW_ALL);
+    }
+
+    synchronized void setConfig(int appWidgetId, int config) {
+        config &= CONFIG_ALL;
+        if ((config & SHOW_ALL) == 0) {
+            // A widget without buttons is of no use
+            config |= SHOW_ALL;
+        }
+        mConfigs.put(appWidgetId, config);
+        save(mPrefs.edit().putInt(KEY_PREFIX + appWidgetId, config));
+    }
+
+    synchronized void remove(int[] appWidgetIds) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (int appWidgetId : appWidgetIds) {
+            mConfigs.delete(appWidgetId);
+            editor.remove(KEY_PREFIX + appWidgetId);
+        }
+        save(editor);
+    }
+
+    synchronized int getPushedState(int defValue) {
+        if (!mPushedStateLoaded) {
+            mPushedState = mPrefs.getInt(KEY_PUSHED_STATE, defValue);
+            mPushedStateLoaded = true;
+        }
+        return mPushedState;
+    }
+
+    /**
+     * Remembers the pushed state, writing only when it changed.
+     */
+    synchronized void setPushedState(int state) {
+        if (mPushedStateLoaded && state == mPushedState) {
+            return;
+        }
+        mPushedState = state;
+        mPushedStateLoaded = true;
+        save(mPrefs.edit().putInt(KEY_PUSHED_STATE, state));
+    }
+
+    private static void save(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+}
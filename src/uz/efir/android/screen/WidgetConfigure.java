@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.appwidget.AppWidgetManager;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * Lets the user pick the buttons of a newly placed widget.
+ */
+public class WidgetConfigure extends Activity {
+    /** Configuration bit of each item of R.array.widget_buttons, in order */
+    private static final int[] ITEM_BITS = {
+        WidgetConfigStore.SHOW_NEVER_TIMEOUT,
+        WidgetConfigStore.SHOW_PRESET,
+        WidgetConfigStore.SHOW_STAY_ON,
+        WidgetConfigStore.TIMED_NEVER_TIMEOUT
+    };
+
+    private int mAppWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        // Backing out leaves the widget unplaced
+        setResult(RESULT_CANCELED);
+
+        Bundle extras = getIntent().getExtras();
+        if (extras != null) {
+            mAppWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID,
+                    AppWidgetManager.INVALID_APPWIDGET_ID);
+        }
+        if (mAppWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+            finish();
+            return;
+        }
+
+        int config = WidgetConfigStore.getInstance(this).getConfig(mAppWidgetId);
+        final boolean[] checked = new boolean[ITEM_BITS.length];
+        for (int i = 0; i < ITEM_BITS.length; i++) {
+            checked[i] = (config & ITEM_BITS[i]) != 0;
+        }
+
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.widget_buttons_title)
+            .setMultiChoiceItems(R.array.widget_buttons, checked,
+                    new DialogInterface.OnMultiChoiceClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                            checked[which] = isChecked;
+                        }
+                    })
+            .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    int newConfig = 0;
+                    for (int i = 0; i < ITEM_BITS.length; i++) {
+                        if (checked[i]) {
+                            newConfig |= ITEM_BITS[i];
+                        }
+                    }
+                    WidgetConfigStore.getInstance(WidgetConfigure.this).setConfig(mAppWidgetId, newConfig);
+                    WidgetProvider.onConfigChanged(WidgetConfigure.this, mAppWidgetId);
+                    setResult(RESULT_OK, new Intent()
+                            .putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, mAppWidgetId));
+                    finish();
+                }
+            })
+            .setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    finish();
+                }
+            })
+            .setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    finish();
+                }
+            })
+            .show();
+    }
+}
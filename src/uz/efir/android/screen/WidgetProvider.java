@@ -23,35 +23,79 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
-import android.os.BatteryManager;
-import android.provider.Settings;
-import android.provider.Settings.SettingNotFoundException;
-import android.util.Log;
+import android.os.Build;
+import android.util.SparseIntArray;
+import android.view.View;
 import android.widget.RemoteViews;
 
 /**
- * Provides "Never time out" and "Stay on" ON/OFF widget
+ * Provides "Never time out" and "Stay on" ON/OFF widget,
+ * plus a button cycling through the timeout presets.
  */
 public class WidgetProvider extends AppWidgetProvider {
-    private static final String TAG = "WidgetProvider";
     private static final ComponentName SOFFT_APPWIDGET =
             new ComponentName("uz.efir.android.screen", "uz.efir.android.screen.WidgetProvider");
-    private static final int BUTTON_NEVER_TIMEOUT = 0;
-    private static final int BUTTON_STAY_ON = 1;
+    private static final int BUTTON_NEVER_TIMEOUT = WidgetState.BUTTON_NEVER_TIMEOUT;
+    private static final int BUTTON_STAY_ON = WidgetState.BUTTON_STAY_ON;
+    private static final int BUTTON_PRESET = WidgetState.BUTTON_PRESET;
+    /** The "never time out" button of an instance configured as timed */
+    private static final int BUTTON_KEEP_AWAKE = 3;
+    private static final int BUTTON_COUNT = 4;
+
+    // Bits of the widget state, see WidgetState.getState()
+    private static final int STATE_NEVER_TIMEOUT = WidgetState.STATE_NEVER_TIMEOUT;
+    private static final int STATE_STAY_ON = WidgetState.STATE_STAY_ON;
+    private static final int STATE_PRESET_SHIFT = WidgetState.STATE_PRESET_SHIFT;
+    /** Widget only: stay-on can not be written, its button is shown disabled */
+    private static final int STATE_STAY_ON_UNAVAILABLE = 1 << 4;
+    // Button masks for updateButtons(), the same bits as WidgetConfigStore.SHOW_*
+    private static final int UPDATE_PRESET = 1 << BUTTON_PRESET;
+    private static final int STATE_UNKNOWN = -1;
+    private static final String NO_PRESET_LABEL = "-";
+
+    /** Key bit of an instance that needs the full layout, see {@link #sendUpdate(Context)} */
+    private static final int KEY_FULL_UPDATE = 1 << 16;
+
+    /** Click intents are the same for every update, so build them only once. */
+    private static final PendingIntent[] sLaunchPendingIntents = new PendingIntent[BUTTON_COUNT];
+    /** State last sent to each widget instance, used to send only what changed. */
+    private static final SparseIntArray sPushedStates = new SparseIntArray();
+    /** Whether sPushedStates was seeded with the state saved by an earlier process. */
+    private static boolean sPushedStatesLoaded;
 
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager,
             int[] appWidgetIds) {
         // Update each requested appWidgetId
-        RemoteViews view = buildUpdate(context);
+        PerfStats.beginSection("WidgetProvider.onUpdate");
+        long start = System.nanoTime();
+        PresetStore presets = PresetStore.getInstance(context);
+        int state = getState(SettingsCache.getInstance(context), presets);
+        WidgetConfigStore configs = WidgetConfigStore.getInstance(context);
+        int[] keys = new int[appWidgetIds.length];
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            keys[i] = KEY_FULL_UPDATE | configs.getConfig(appWidgetIds[i]);
+        }
+        sendBatches(context, appWidgetManager, appWidgetIds, keys, state, presets);
+        PerfStats.record(PerfStats.PHASE_BUILD, start);
+        PerfStats.endSection();
+
+        // Content trigger jobs do not survive a reboot, onUpdate() runs after every boot
+        SettingsSyncJobService.schedule(context);
+    }
 
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        loadPushedStates(context);
+        WidgetConfigStore.getInstance(context).remove(appWidgetIds);
         for (int appWidgetId : appWidgetIds) {
-            appWidgetManager.updateAppWidget(appWidgetId, view);
+            sPushedStates.delete(appWidgetId);
         }
     }
 
     @Override
     public void onEnabled(Context context) {
+        SettingsSyncJobService.schedule(context);
         PackageManager pm = context.getPackageManager();
         if (pm != null) {
             pm.setComponentEnabledSetting(SOFFT_APPWIDGET,
@@ -68,84 +112,299 @@ public class WidgetProvider extends AppWidgetProvider {
                     PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
                     PackageManager.DONT_KILL_APP);
         }
+        sPushedStates.clear();
+        WidgetConfigStore.getInstance(context).setPushedState(STATE_UNKNOWN);
+        SettingsSyncJobService.cancel(context);
+    }
+
+    /**
+     * Toggles a mode by hand, from the widget or a tile, see
+     * {@link WidgetState#toggleMode}. Set by hand, the timeout no longer
+     * follows the timer of "keep awake", which is cancelled.
+     */
+    static void toggleMode(Context context, SettingsCache cache, PresetStore presets, int whichButton) {
+        if (whichButton != BUTTON_STAY_ON) {
+            KeepAwakeReceiver.cancel(context);
+        }
+        WidgetState.toggleMode(cache, presets, whichButton);
+    }
+
+    /**
+     * @return the state of {@link WidgetState#getState}, plus whether stay-on can be written.
+     */
+    private static int getState(SettingsCache cache, PresetStore presets) {
+        int state = WidgetState.getState(cache.get(), presets);
+        if (!cache.getCapabilities().canWrite(WidgetState.getSettingName(BUTTON_STAY_ON))) {
+            state |= STATE_STAY_ON_UNAVAILABLE;
+        }
+        return state;
     }
 
     /**
      * Load image for given widget and build {@link RemoteViews} for it.
+     * This is the full layout including click handlers.
+     *
+     * @param config   The buttons to show, see {@link WidgetConfigStore}
      */
-    static RemoteViews buildUpdate(Context context) {
+    static RemoteViews buildUpdate(Context context, int state, PresetStore presets, int config) {
         RemoteViews views = new RemoteViews(context.getPackageName(),
                 R.layout.widget);
-        views.setOnClickPendingIntent(R.id.btn_never_timeout,
-                getLaunchPendingIntent(context, BUTTON_NEVER_TIMEOUT));
-        views.setOnClickPendingIntent(R.id.btn_stayon,
-                getLaunchPendingIntent(context, BUTTON_STAY_ON));
+        boolean showNever = (config & WidgetConfigStore.SHOW_NEVER_TIMEOUT) != 0;
+        boolean showPreset = (config & WidgetConfigStore.SHOW_PRESET) != 0;
+        boolean showStayOn = (config & WidgetConfigStore.SHOW_STAY_ON) != 0;
+        views.setViewVisibility(R.id.btn_never_timeout, showNever ? View.VISIBLE : View.GONE);
+        views.setViewVisibility(R.id.divider_left,
+                showNever && (showPreset || showStayOn) ? View.VISIBLE : View.GONE);
+        views.setViewVisibility(R.id.btn_preset, showPreset ? View.VISIBLE : View.GONE);
+        views.setViewVisibility(R.id.divider_right,
+                showPreset && showStayOn ? View.VISIBLE : View.GONE);
+        views.setViewVisibility(R.id.btn_stayon, showStayOn ? View.VISIBLE : View.GONE);
 
-        updateButtons(views, context);
+        if (showNever) {
+            views.setOnClickPendingIntent(R.id.btn_never_timeout,
+                    getLaunchPendingIntent(context,
+                            (config & WidgetConfigStore.TIMED_NEVER_TIMEOUT) != 0
+                            ? BUTTON_KEEP_AWAKE : BUTTON_NEVER_TIMEOUT));
+        }
+        if (showPreset) {
+            views.setOnClickPendingIntent(R.id.btn_preset,
+                    getLaunchPendingIntent(context, BUTTON_PRESET));
+        }
+        if (showStayOn) {
+            views.setOnClickPendingIntent(R.id.btn_stayon,
+                    getLaunchPendingIntent(context, BUTTON_STAY_ON));
+        }
+
+        updateButtons(views, state, config, presets);
         return views;
     }
 
+    /**
+     * Redraws one instance from scratch after its configuration changed.
+     */
+    static void onConfigChanged(Context context, int appWidgetId) {
+        loadPushedStates(context);
+        sPushedStates.delete(appWidgetId);
+        updateWidget(context);
+    }
+
     /**
      * Updates the widget when something changes, or when a button is pushed.
+     * Requests arriving close together are merged into a single update.
      *
      * @param context   The Context
      */
     public static void updateWidget(Context context) {
-        RemoteViews views = buildUpdate(context);
-        // Update specific list of appWidgetIds if given, otherwise default to all
+        WidgetUpdateScheduler.getInstance(context).requestUpdate();
+    }
+
+    /**
+     * Sends the current state to the widget host right away.
+     * Only the images of buttons whose state changed since the last push are sent.
+     *
+     * @param context   The Context
+     */
+    static void pushUpdate(Context context) {
+        PerfStats.beginSection("WidgetProvider.pushUpdate");
+        long start = System.nanoTime();
+        try {
+            sendUpdate(context);
+        } finally {
+            PerfStats.record(PerfStats.PHASE_BUILD, start);
+            PerfStats.endSection();
+            PerfStats.markEnd(PerfStats.PHASE_WIDGET_TAP);
+            PerfStats.markEnd(PerfStats.PHASE_PREFERENCE);
+        }
+    }
+
+    private static void sendUpdate(Context context) {
         final AppWidgetManager gm = AppWidgetManager.getInstance(context);
-        if (gm != null) {
-            gm.updateAppWidget(SOFFT_APPWIDGET, views);
+        if (gm == null) {
+            return;
+        }
+        int[] appWidgetIds = gm.getAppWidgetIds(SOFFT_APPWIDGET);
+        if (appWidgetIds == null || appWidgetIds.length == 0) {
+            return;
         }
+
+        loadPushedStates(context);
+        PresetStore presets = PresetStore.getInstance(context);
+        int state = getState(SettingsCache.getInstance(context), presets);
+        WidgetConfigStore configs = WidgetConfigStore.getInstance(context);
+        // Instances with the same key get the very same RemoteViews
+        int[] keys = new int[appWidgetIds.length];
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            int config = configs.getConfig(appWidgetIds[i]);
+            int pushedState = sPushedStates.get(appWidgetIds[i], STATE_UNKNOWN);
+            if (pushedState == STATE_UNKNOWN
+                    || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+                // New instance, or no partial updates before API level 11
+                keys[i] = KEY_FULL_UPDATE | config;
+            } else {
+                keys[i] = getChangedButtons(state, pushedState) & config;
+            }
+        }
+        sendBatches(context, gm, appWidgetIds, keys, state, presets);
+    }
+
+    /**
+     * Builds the RemoteViews once per distinct key and sends them to all
+     * instances having that key in one call. A key is either
+     * {@link #KEY_FULL_UPDATE} with the configuration of the instance, or the
+     * buttons to update partially, 0 for none.
+     */
+    private static void sendBatches(Context context, AppWidgetManager gm, int[] appWidgetIds,
+            int[] keys, int state, PresetStore presets) {
+        boolean[] sent = new boolean[appWidgetIds.length];
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            if (sent[i] || keys[i] == 0) {
+                continue;
+            }
+            int key = keys[i];
+            int count = 0;
+            for (int j = i; j < appWidgetIds.length; j++) {
+                if (keys[j] == key) {
+                    count++;
+                }
+            }
+            int[] batch = new int[count];
+            count = 0;
+            for (int j = i; j < appWidgetIds.length; j++) {
+                if (keys[j] == key) {
+                    batch[count++] = appWidgetIds[j];
+                    sent[j] = true;
+                    sPushedStates.put(appWidgetIds[j], state);
+                }
+            }
+
+            if ((key & KEY_FULL_UPDATE) != 0) {
+                gm.updateAppWidget(batch, buildUpdate(context, state, presets, key & ~KEY_FULL_UPDATE));
+            } else {
+                RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget);
+                updateButtons(views, state, key, presets);
+                gm.partiallyUpdateAppWidget(batch, views);
+            }
+        }
+        WidgetConfigStore.getInstance(context).setPushedState(state);
+    }
+
+    /**
+     * Seeds the pushed states with the one saved by an earlier process, once.
+     * Without it every instance would get a full update after a restart even
+     * if nothing changed.
+     */
+    private static void loadPushedStates(Context context) {
+        if (sPushedStatesLoaded) {
+            return;
+        }
+        sPushedStatesLoaded = true;
+        int state = WidgetConfigStore.getInstance(context).getPushedState(STATE_UNKNOWN);
+        AppWidgetManager gm = AppWidgetManager.getInstance(context);
+        if (state == STATE_UNKNOWN || gm == null) {
+            return;
+        }
+        for (int appWidgetId : gm.getAppWidgetIds(SOFFT_APPWIDGET)) {
+            if (sPushedStates.get(appWidgetId, STATE_UNKNOWN) == STATE_UNKNOWN) {
+                sPushedStates.put(appWidgetId, state);
+            }
+        }
+    }
+
+    /**
+     * @return the buttons whose look differs between two widget states.
+     */
+    private static int getChangedButtons(int state, int pushedState) {
+        int diff = state ^ pushedState;
+        int changed = diff & (STATE_NEVER_TIMEOUT | STATE_STAY_ON);
+        if ((diff & STATE_STAY_ON_UNAVAILABLE) != 0) {
+            changed |= STATE_STAY_ON;
+        }
+        if ((diff >>> STATE_PRESET_SHIFT) != 0) {
+            changed |= UPDATE_PRESET;
+        }
+        return changed;
+    }
+
+    /**
+     * Forces the preset button to be redrawn, for example after the presets
+     * were edited and the same index now has another name.
+     */
+    static void onPresetsChanged(Context context) {
+        loadPushedStates(context);
+        sPushedStates.clear();
+        WidgetConfigStore.getInstance(context).setPushedState(STATE_UNKNOWN);
+        updateWidget(context);
     }
 
     /**
      * Updates the buttons based on the current database value.
      *
      * @param views   The RemoteViews to update.
-     * @param context   The Context
+     * @param state   The widget state, see {@link #getState(SettingsCache, PresetStore)}
+     * @param which   The bits of the buttons to update
+     * @param presets   The presets, naming the preset button
      */
-    private static void updateButtons(RemoteViews views, Context context) {
+    private static void updateButtons(RemoteViews views, int state, int which,
+            PresetStore presets) {
+        if ((which & STATE_NEVER_TIMEOUT) != 0) {
+            if ((state & STATE_NEVER_TIMEOUT) != 0) {
+                views.setImageViewResource(R.id.img_never_timeout,
+                                           R.drawable.ic_never_timeout_on);
+                views.setImageViewResource(R.id.ind_never_timeout,
+                                           R.drawable.appwidget_indicator_on_l);
+            } else {
+                views.setImageViewResource(R.id.img_never_timeout,
+                                           R.drawable.ic_never_timeout_off);
+                views.setImageViewResource(R.id.ind_never_timeout,
+                                           R.drawable.appwidget_indicator_off_l);
+            }
+        }
 
-        if (getMode(context, BUTTON_NEVER_TIMEOUT)) {
-            views.setImageViewResource(R.id.img_never_timeout,
-                                       R.drawable.ic_never_timeout_on);
-            views.setImageViewResource(R.id.ind_never_timeout,
-                                       R.drawable.appwidget_indicator_on_l);
-        } else {
-            views.setImageViewResource(R.id.img_never_timeout,
-                                       R.drawable.ic_never_timeout_off);
-            views.setImageViewResource(R.id.ind_never_timeout,
-                                       R.drawable.appwidget_indicator_off_l);
+        if ((which & STATE_STAY_ON) != 0) {
+            if ((state & STATE_STAY_ON) != 0) {
+                views.setImageViewResource(R.id.img_stayon,
+                                           R.drawable.ic_stay_on_while_plugged_in_on);
+                views.setImageViewResource(R.id.ind_stayon,
+                                           R.drawable.appwidget_indicator_on_r);
+            } else {
+                views.setImageViewResource(R.id.img_stayon,
+                                           R.drawable.ic_stay_on_while_plugged_in_off);
+                views.setImageViewResource(R.id.ind_stayon,
+                                           R.drawable.appwidget_indicator_off_r);
+            }
+            // Without the permission a tap would do nothing, the button takes no taps then
+            boolean available = (state & STATE_STAY_ON_UNAVAILABLE) == 0;
+            views.setBoolean(R.id.btn_stayon, "setEnabled", available);
+            views.setInt(R.id.img_stayon, "setAlpha", available ? 255 : 96);
         }
 
-        if (getMode(context, BUTTON_STAY_ON)) {
-            views.setImageViewResource(R.id.img_stayon,
-                                       R.drawable.ic_stay_on_while_plugged_in_on);
-            views.setImageViewResource(R.id.ind_stayon,
-                                       R.drawable.appwidget_indicator_on_r);
-        } else {
-            views.setImageViewResource(R.id.img_stayon,
-                                       R.drawable.ic_stay_on_while_plugged_in_off);
-            views.setImageViewResource(R.id.ind_stayon,
-                                       R.drawable.appwidget_indicator_off_r);
+        if ((which & UPDATE_PRESET) != 0) {
+            int preset = (state >>> STATE_PRESET_SHIFT) - 1;
+            String[] names = presets.getPresetNames();
+            views.setTextViewText(R.id.txt_preset,
+                    preset >= 0 && preset < names.length ? names[preset] : NO_PRESET_LABEL);
         }
     }
 
     /**
      * Creates PendingIntent to notify the widget of a button click.
-     *
+     * The intent is created once per button and reused afterwards.
      *
      * @param context    The Context
      * @return  PendingIntent
      */
     private static PendingIntent getLaunchPendingIntent(Context context, int buttonId) {
-        Intent launchIntent = new Intent();
-        launchIntent.setClass(context, WidgetProvider.class);
-        launchIntent.addCategory(Intent.CATEGORY_ALTERNATIVE);
-        launchIntent.setData(Uri.parse("custom:" + buttonId));
-        return PendingIntent.getBroadcast(context, 0 /* no requestCode */,
-                launchIntent, 0 /* no flags */);
+        synchronized (sLaunchPendingIntents) {
+            if (sLaunchPendingIntents[buttonId] == null) {
+                Intent launchIntent = new Intent();
+                launchIntent.setClass(context, WidgetProvider.class);
+                launchIntent.addCategory(Intent.CATEGORY_ALTERNATIVE);
+                launchIntent.setData(Uri.parse("custom:" + buttonId));
+                sLaunchPendingIntents[buttonId] = PendingIntent.getBroadcast(context,
+                        0 /* no requestCode */, launchIntent, 0 /* no flags */);
+            }
+            return sLaunchPendingIntents[buttonId];
+        }
     }
 
     /**
@@ -158,8 +417,19 @@ public class WidgetProvider extends AppWidgetProvider {
     public void onReceive(Context context, Intent intent) {
         super.onReceive(context, intent);
         if (intent.hasCategory(Intent.CATEGORY_ALTERNATIVE) && intent.getData() != null) {
-            toggleMode(context,
-                    Integer.parseInt(intent.getData().getSchemeSpecificPart()));
+            PerfStats.markStart(PerfStats.PHASE_WIDGET_TAP);
+            PerfStats.beginSection("WidgetProvider.toggleMode");
+            try {
+                int button = Integer.parseInt(intent.getData().getSchemeSpecificPart());
+                if (button == BUTTON_KEEP_AWAKE) {
+                    KeepAwakeReceiver.toggle(context);
+                } else {
+                    toggleMode(context, SettingsCache.getInstance(context),
+                            PresetStore.getInstance(context), button);
+                }
+            } finally {
+                PerfStats.endSection();
+            }
         } else {
             // Don't fall-through to updating the widget.  The Intent
             // was something unrelated or that our super class took
@@ -167,62 +437,25 @@ public class WidgetProvider extends AppWidgetProvider {
             return;
         }
 
-        // State changes fall through
+        // State changes fall through, the cache already holds the new values
         updateWidget(context);
-    }
 
-    /**
-     * Gets state of SCREEN_OFF_TIMEOUT and STAY_ON_WHILE_PLUGGED_IN modes.
-     *
-     * @param context   The Context
-     * @param which SCREEN_OFF_TIMEOUT or STAY_ON_WHILE_PLUGGED_IN
-     * @return true if SCREEN_OFF_TIMEOUT is -1 (never time out) or STAY_ON_WHILE_PLUGGED_IN mode is on.
-     */
-    private static boolean getMode(Context context, int which) {
-        if (which == BUTTON_NEVER_TIMEOUT) {
-            try {
-                return Settings.System.getInt(context.getContentResolver(),
-                        Settings.System.SCREEN_OFF_TIMEOUT) < 0;
-                } catch (SettingNotFoundException snfe) {
-                    Log.d(TAG, "SCREEN_OFF_TIMEOUT row is not found");
-                }
-            return false;
-        } else { // which == BUTTON_STAY_ON (there is no other option, but this)
-            return Settings.System.getInt(context.getContentResolver(),
-                    Settings.System.STAY_ON_WHILE_PLUGGED_IN, 0) > 0;
-        }
-    }
-
-    /**
-     * Change SCREEN_OFF_TIMEOUT and STAY_ON_WHILE_PLUGGED_IN modes.
-     *
-     * @param context   The Context
-     * @param whichButton SCREEN_OFF_TIMEOUT or STAY_ON_WHILE_PLUGGED_IN
-     */
-    private void toggleMode(Context context, int whichButton) {
-        switch (whichButton) {
-            case BUTTON_NEVER_TIMEOUT:
-                if (getMode(context, BUTTON_NEVER_TIMEOUT)) {
-                    Settings.System.putInt(context.getContentResolver(),
-                            Settings.System.SCREEN_OFF_TIMEOUT,
-                            Settings.System.getInt(context.getContentResolver(), "uz_efir_screen_off", 60000));
-                } else {
-                    Settings.System.putInt(context.getContentResolver(),
-                            Settings.System.SCREEN_OFF_TIMEOUT, -1);
-                }
-                break;
-            case BUTTON_STAY_ON:
-                if (getMode(context, BUTTON_STAY_ON)) {
-                    Settings.System.putInt(context.getContentResolver(),
-                            Settings.System.STAY_ON_WHILE_PLUGGED_IN, 0);
-                } else {
-                    Settings.System.putInt(context.getContentResolver(),
-                            Settings.System.STAY_ON_WHILE_PLUGGED_IN,
-                            BatteryManager.BATTERY_PLUGGED_AC | BatteryManager.BATTERY_PLUGGED_USB);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Keep the process alive until the widget is redrawn and
+            // the queued write reaches the provider
+            final PendingResult result = goAsync();
+            final SettingsCache cache = SettingsCache.getInstance(context);
+            WidgetUpdateScheduler.getInstance(context).runAfterUpdate(new Runnable() {
+                @Override
+                public void run() {
+                    cache.runAfterWrites(new Runnable() {
+                        @Override
+                        public void run() {
+                            result.finish();
+                        }
+                    });
                 }
-                break;
-            default:
-                Log.e(TAG, "Can not toggle mode for button " + whichButton);
+            });
         }
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.os.BatteryManager;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * What the widget buttons show and what a tap on them does, worked out from
+ * the {@link SettingsCache} alone. Kept out of {@link WidgetProvider} so it
+ * does not need resources or a Context and runs on a plain JVM, see the
+ * benchmark module.
+ */
+final class WidgetState {
+    private static final String TAG = "WidgetState";
+    static final int BUTTON_NEVER_TIMEOUT = 0;
+    static final int BUTTON_STAY_ON = 1;
+    static final int BUTTON_PRESET = 2;
+
+    // Bits of the widget state, one per ON/OFF button
+    static final int STATE_NEVER_TIMEOUT = 1 << BUTTON_NEVER_TIMEOUT;
+    static final int STATE_STAY_ON = 1 << BUTTON_STAY_ON;
+    // The preset button keeps the index of the current preset + 1 above this shift, 0 for none
+    static final int STATE_PRESET_SHIFT = 8;
+
+    private WidgetState() {
+    }
+
+    /**
+     * Packs the mode of every button, and the current preset, into one int.
+     */
+    static int getState(SettingsCache.Snapshot snapshot, PresetStore presets) {
+        int state = 0;
+        if (getMode(snapshot, BUTTON_NEVER_TIMEOUT)) {
+            state |= STATE_NEVER_TIMEOUT;
+        }
+        if (getMode(snapshot, BUTTON_STAY_ON)) {
+            state |= STATE_STAY_ON;
+        }
+        int preset = indexOf(presets.getPresetValues(), snapshot.screenOffTimeout);
+        return state | ((preset + 1) << STATE_PRESET_SHIFT);
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the settings row an ON/OFF button writes.
+     */
+    static String getSettingName(int which) {
+        return which == BUTTON_STAY_ON
+                ? Settings.System.STAY_ON_WHILE_PLUGGED_IN : Settings.System.SCREEN_OFF_TIMEOUT;
+    }
+
+    /**
+     * Gets state of SCREEN_OFF_TIMEOUT and STAY_ON_WHILE_PLUGGED_IN modes.
+     *
+     * @param snapshot   The cached settings values
+     * @param which SCREEN_OFF_TIMEOUT or STAY_ON_WHILE_PLUGGED_IN
+     * @return true if SCREEN_OFF_TIMEOUT is -1 (never time out) or STAY_ON_WHILE_PLUGGED_IN mode is on.
+     */
+    static boolean getMode(SettingsCache.Snapshot snapshot, int which) {
+        if (which == BUTTON_NEVER_TIMEOUT) {
+            return snapshot.isNeverTimeout();
+        } else { // which == BUTTON_STAY_ON (there is no other option, but this)
+            return snapshot.isStayOn();
+        }
+    }
+
+    /**
+     * Change SCREEN_OFF_TIMEOUT and STAY_ON_WHILE_PLUGGED_IN modes,
+     * or move SCREEN_OFF_TIMEOUT to the next preset.
+     *
+     * @param cache   The settings to toggle
+     * @param presets   Holds the saved timeout and the presets
+     * @param whichButton SCREEN_OFF_TIMEOUT, preset or STAY_ON_WHILE_PLUGGED_IN
+     */
+    static void toggleMode(SettingsCache cache, PresetStore presets, int whichButton) {
+        SettingsCache.Snapshot snapshot = cache.get();
+        switch (whichButton) {
+            case BUTTON_NEVER_TIMEOUT:
+                if (getMode(snapshot, BUTTON_NEVER_TIMEOUT)) {
+                    cache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, presets.getSavedTimeout());
+                } else {
+                    cache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, -1);
+                }
+                break;
+            case BUTTON_PRESET:
+                // A timeout that is not a preset starts over from the first one
+                int[] values = presets.getPresetValues();
+                int next = (indexOf(values, snapshot.screenOffTimeout) + 1) % values.length;
+                cache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, values[next]);
+                break;
+            case BUTTON_STAY_ON:
+                if (getMode(snapshot, BUTTON_STAY_ON)) {
+                    cache.putInt(Settings.System.STAY_ON_WHILE_PLUGGED_IN, 0);
+                } else {
+                    cache.putInt(Settings.System.STAY_ON_WHILE_PLUGGED_IN,
+                            BatteryManager.BATTERY_PLUGGED_AC | BatteryManager.BATTERY_PLUGGED_USB);
+                }
+                break;
+            default:
+                Log.e(TAG, "Can not toggle mode for button " + whichButton);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Collects widget update requests and sends at most one update per
+ * {@link #WINDOW_MS} window, built from the latest state.
+ */
+final class WidgetUpdateScheduler {
+    private static final String TAG = "WidgetUpdateScheduler";
+    /** About three frames; long enough to swallow a burst of taps. */
+    static final long WINDOW_MS = 50;
+
+    private static WidgetUpdateScheduler sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    // All of the below are guarded by this
+    private final ArrayList<Runnable> mCallbacks = new ArrayList<Runnable>();
+    private boolean mPosted;
+    private int mRequestedCount;
+    private int mDispatchedCount;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    private WidgetUpdateScheduler(Context context) {
+        mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    static synchronized WidgetUpdateScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetUpdateScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Asks for a widget update. Requests made before the pending one is
+     * sent are merged into it.
+     */
+    synchronized void requestUpdate() {
+        mRequestedCount++;
+        if (!mPosted) {
+            mPosted = true;
+            mHandler.postDelayed(mDispatch, WINDOW_MS);
+        }
+    }
+
+    /**
+     * Runs the callback on the main thread right after the pending update is
+     * sent, or as soon as possible if there is none.
+     */
+    synchronized void runAfterUpdate(Runnable callback) {
+        if (mPosted) {
+            mCallbacks.add(callback);
+        } else {
+            mHandler.post(callback);
+        }
+    }
+
+    /**
+     * @return how many updates were asked for since the process started.
+     */
+    synchronized int getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    /**
+     * @return how many updates were actually sent to the widget host.
+     */
+    synchronized int getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    private void dispatch() {
+        ArrayList<Runnable> callbacks;
+        synchronized (this) {
+            mPosted = false;
+            mDispatchedCount++;
+            callbacks = new ArrayList<Runnable>(mCallbacks);
+            mCallbacks.clear();
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Sending update " + mDispatchedCount + ", "
+                        + (mRequestedCount - mDispatchedCount) + " requests merged so far");
+            }
+        }
+
+        WidgetProvider.pushUpdate(mContext);
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+}
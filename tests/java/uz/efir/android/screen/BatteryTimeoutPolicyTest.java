@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests parsing {@link BatteryTimeoutPolicy} and picking the timeout for a level.
+ */
+public class BatteryTimeoutPolicyTest extends TestCase {
+    public void testLowestMatchingThresholdWins() {
+        BatteryTimeoutPolicy policy = BatteryTimeoutPolicy.parse("10=30; 20=60");
+        assertEquals(BatteryTimeoutPolicy.NO_RULE, policy.valueFor(21));
+        assertEquals(60 * 1000, policy.valueFor(20));
+        assertEquals(60 * 1000, policy.valueFor(11));
+        assertEquals(30 * 1000, policy.valueFor(10));
+        assertEquals(30 * 1000, policy.valueFor(1));
+    }
+
+    public void testParseEmpty() {
+        assertTrue(BatteryTimeoutPolicy.parse(null).isEmpty());
+        assertTrue(BatteryTimeoutPolicy.parse(" ; ").isEmpty());
+    }
+
+    public void testLargestTimeout() {
+        int seconds = Integer.MAX_VALUE / 1000;
+        BatteryTimeoutPolicy policy = BatteryTimeoutPolicy.parse("20=" + seconds);
+        assertEquals(seconds * 1000, policy.valueFor(15));
+    }
+
+    public void testParseRejectsBadThresholds() {
+        String[] specs = {
+            "20",
+            "=60",
+            "0=60",
+            "101=60",
+            "20=0",
+            "20=-5",
+            "20=soon",
+            // Would overflow the timeout in milliseconds
+            "20=" + (Integer.MAX_VALUE / 1000 + 1),
+            "20=3000000",
+            "20=5000000"
+        };
+        for (String spec : specs) {
+            try {
+                BatteryTimeoutPolicy.parse(spec);
+                fail("Accepted " + spec);
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+    }
+}
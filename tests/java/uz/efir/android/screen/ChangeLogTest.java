@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Tests how {@link ChangeLog} records loaded snapshots next to SOFFT's own writes.
+ */
+public class ChangeLogTest extends TestCase {
+    private static final long START = 1378108800000L;
+    private static final int TWO_MINUTES = 2 * 60 * 1000;
+
+    private File mFile;
+    private ChangeLog mLog;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("changes", ".log");
+        mLog = new ChangeLog(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testFirstSnapshotSeedsTheHeader() {
+        mLog.sync(START, new SettingsCache.Snapshot(TWO_MINUTES, 3));
+        ChangeLog.Stats stats = mLog.getStats(START + 5000);
+        assertEquals(2, stats.count);
+        assertEquals(1, stats.timeouts.length);
+        assertEquals(TWO_MINUTES, stats.timeouts[0]);
+        assertEquals(5000, stats.timeoutMillis[0]);
+        assertEquals(5000, stats.stayOnMillis);
+    }
+
+    public void testUnchangedSnapshotRecordsNothing() {
+        mLog.sync(START, new SettingsCache.Snapshot(TWO_MINUTES, 0));
+        mLog.sync(START + 1000, new SettingsCache.Snapshot(TWO_MINUTES, 0));
+        assertEquals(2, mLog.getStats(START + 2000).count);
+    }
+
+    public void testOutsideChangeIsChargedToTheNewState() {
+        mLog.sync(START, new SettingsCache.Snapshot(TWO_MINUTES, 0));
+        // Changed in the system Settings app, seen on the next reload
+        mLog.sync(START + 1000, new SettingsCache.Snapshot(-1, 0));
+        ChangeLog.Stats stats = mLog.getStats(START + 3000);
+        assertEquals(3, stats.count);
+        assertEquals(TWO_MINUTES, stats.timeouts[0]);
+        assertEquals(1000, stats.timeoutMillis[0]);
+        assertEquals(-1, stats.timeouts[1]);
+        assertEquals(2000, stats.timeoutMillis[1]);
+    }
+
+    public void testOwnWriteAndItsReloadAreRecordedOnce() {
+        mLog.sync(START, new SettingsCache.Snapshot(TWO_MINUTES, 0));
+        mLog.appendIfChanged(START + 1000, ChangeLog.FIELD_STAY_ON, 3);
+        mLog.sync(START + 1200, new SettingsCache.Snapshot(TWO_MINUTES, 3));
+        mLog.appendIfChanged(START + 2000, ChangeLog.FIELD_STAY_ON, 3);
+        ChangeLog.Stats stats = mLog.getStats(START + 4000);
+        assertEquals(3, stats.count);
+        assertEquals(3000, stats.stayOnMillis);
+    }
+
+    public void testHeaderSurvivesReopening() {
+        mLog.sync(START, new SettingsCache.Snapshot(TWO_MINUTES, 0));
+        ChangeLog reopened = new ChangeLog(mFile);
+        reopened.sync(START + 1000, new SettingsCache.Snapshot(TWO_MINUTES, 0));
+        assertEquals(2, reopened.getStats(START + 1000).count);
+    }
+}
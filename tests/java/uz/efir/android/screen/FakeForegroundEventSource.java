@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import java.util.ArrayList;
+
+/**
+ * {@link ForegroundEventSource} replaying foreground changes added by the test.
+ */
+final class FakeForegroundEventSource implements ForegroundEventSource {
+    private final ArrayList<Long> mTimes = new ArrayList<Long>();
+    private final ArrayList<String> mPackages = new ArrayList<String>();
+    private int mQueryCount;
+    private long mLastBegin = -1;
+    private long mLastEnd = -1;
+
+    /**
+     * Records that the app moved to the foreground at the given time.
+     */
+    void moveToForeground(long timeMillis, String packageName) {
+        mTimes.add(timeMillis);
+        mPackages.add(packageName);
+    }
+
+    @Override
+    public String getLastForegroundPackage(long beginMillis, long endMillis) {
+        mQueryCount++;
+        mLastBegin = beginMillis;
+        mLastEnd = endMillis;
+        String packageName = null;
+        long latest = Long.MIN_VALUE;
+        for (int i = 0; i < mTimes.size(); i++) {
+            long time = mTimes.get(i);
+            if (time >= beginMillis && time < endMillis && time >= latest) {
+                latest = time;
+                packageName = mPackages.get(i);
+            }
+        }
+        return packageName;
+    }
+
+    int getQueryCount() {
+        return mQueryCount;
+    }
+
+    long getLastBegin() {
+        return mLastBegin;
+    }
+
+    long getLastEnd() {
+        return mLastEnd;
+    }
+}
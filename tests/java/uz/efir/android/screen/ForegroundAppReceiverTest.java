@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import android.content.SharedPreferences;
+import android.provider.Settings;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Tests {@link ForegroundAppReceiver#applyRules} against a fake event
+ * source, in-memory preferences and an in-memory settings store.
+ */
+public class ForegroundAppReceiverTest extends TestCase {
+    private static final String NAVIGATION = "com.example.navigation";
+    private static final String READER = "com.example.reader";
+    private static final String OTHER = "com.example.other";
+    private static final String RULES = NAVIGATION + "=never; " + READER + "=10";
+    private static final int SAVED_TIMEOUT = 2 * 60 * 1000;
+    private static final long START = 1378108800000L; // Monday, September 2 2013
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private SharedPreferences mPrefs;
+    private FakeForegroundEventSource mSource;
+    private InMemorySettingsStore mStore;
+    private ScheduledExecutorService mExecutor;
+    private SettingsCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = new MemorySharedPreferences();
+        mSource = new FakeForegroundEventSource();
+        mStore = new InMemorySettingsStore();
+        mStore.putInt(SettingsStore.TABLE_SYSTEM, Settings.System.SCREEN_OFF_TIMEOUT, SAVED_TIMEOUT);
+        mStore.resetCounts();
+        SettingsCapabilities capabilities = new SettingsCapabilities(true, true, true);
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mCache = new SettingsCache(mStore, capabilities,
+                new SettingsWriter(mStore, capabilities, mExecutor, 0 /* no merging */));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdown();
+        super.tearDown();
+    }
+
+    public void testNoRulesDoesNothing() {
+        mSource.moveToForeground(START, NAVIGATION);
+        assertFalse(apply(START + 1000));
+        assertEquals(0, mSource.getQueryCount());
+        assertEquals(0, mStore.getReadCount());
+    }
+
+    public void testRuleAppSetsItsTimeout() throws InterruptedException {
+        setRules(RULES);
+        mSource.moveToForeground(START, NAVIGATION);
+        assertTrue(apply(START + 1000));
+        assertEquals(-1, mCache.get().screenOffTimeout);
+        awaitWrites();
+        assertEquals(-1, mStore.getInt(SettingsStore.TABLE_SYSTEM,
+                Settings.System.SCREEN_OFF_TIMEOUT, SettingsCache.NOT_FOUND));
+    }
+
+    public void testLeavingRuleAppRestoresSavedTimeout() {
+        setRules(RULES);
+        mSource.moveToForeground(START, NAVIGATION);
+        assertTrue(apply(START + 1000));
+        mSource.moveToForeground(START + 2000, OTHER);
+        assertTrue(apply(START + 3000));
+        assertEquals(SAVED_TIMEOUT, mCache.get().screenOffTimeout);
+
+        // Nothing is active any more, other apps leave the timeout alone
+        mSource.moveToForeground(START + 4000, NAVIGATION);
+        mSource.moveToForeground(START + 4500, OTHER);
+        assertFalse(apply(START + 5000));
+        assertEquals(SAVED_TIMEOUT, mCache.get().screenOffTimeout);
+    }
+
+    public void testSwitchingBetweenRuleApps() {
+        setRules(RULES);
+        mSource.moveToForeground(START, NAVIGATION);
+        assertTrue(apply(START + 1000));
+        mSource.moveToForeground(START + 2000, READER);
+        assertTrue(apply(START + 3000));
+        assertEquals(10 * 60 * 1000, mCache.get().screenOffTimeout);
+    }
+
+    public void testOnlyTheLastForegroundAppCounts() {
+        setRules(RULES);
+        mSource.moveToForeground(START, NAVIGATION);
+        mSource.moveToForeground(START + 500, OTHER);
+        assertFalse(apply(START + 1000));
+        assertEquals(SAVED_TIMEOUT, mCache.get().screenOffTimeout);
+    }
+
+    public void testAppWithoutRuleKeepsManualTimeout() {
+        mStore.putInt(SettingsStore.TABLE_SYSTEM, Settings.System.SCREEN_OFF_TIMEOUT, 5 * 60 * 1000);
+        setRules(RULES);
+        mSource.moveToForeground(START, OTHER);
+        assertFalse(apply(START + 1000));
+        assertEquals(5 * 60 * 1000, mCache.get().screenOffTimeout);
+    }
+
+    public void testNoForegroundChangeKeepsTheRule() {
+        setRules(RULES);
+        mSource.moveToForeground(START, NAVIGATION);
+        assertTrue(apply(START + 1000));
+        assertFalse(apply(START + 60000));
+        assertEquals(-1, mCache.get().screenOffTimeout);
+    }
+
+    public void testQueriesOnlySinceTheLastRun() {
+        setRules(RULES);
+        long now = START + 3 * DAY;
+        assertFalse(apply(now));
+        // The first run looks back a day at most
+        assertEquals(now - DAY, mSource.getLastBegin());
+        assertEquals(now, mSource.getLastEnd());
+
+        assertFalse(apply(now + 1000));
+        assertEquals(now, mSource.getLastBegin());
+        assertEquals(2, mSource.getQueryCount());
+    }
+
+    public void testRemovedRulesStillRestore() {
+        setRules(RULES);
+        mSource.moveToForeground(START, NAVIGATION);
+        assertTrue(apply(START + 1000));
+        setRules(null);
+        mSource.moveToForeground(START + 2000, OTHER);
+        assertTrue(apply(START + 3000));
+        assertEquals(SAVED_TIMEOUT, mCache.get().screenOffTimeout);
+
+        // Restored once, from now on nothing is queried
+        assertFalse(apply(START + 4000));
+        assertEquals(2, mSource.getQueryCount());
+    }
+
+    public void testTimeoutAlreadySetWritesNothing() throws InterruptedException {
+        mStore.putInt(SettingsStore.TABLE_SYSTEM, Settings.System.SCREEN_OFF_TIMEOUT, -1);
+        mStore.resetCounts();
+        setRules(RULES);
+        mSource.moveToForeground(START, NAVIGATION);
+        assertFalse(apply(START + 1000));
+        awaitWrites();
+        assertEquals(0, mStore.getWriteCount());
+    }
+
+    public void testManualChangeWhileActiveIsKept() {
+        setRules(RULES);
+        mSource.moveToForeground(START, NAVIGATION);
+        assertTrue(apply(START + 1000));
+        // Set by hand while the rule was in effect
+        mCache.putInt(Settings.System.SCREEN_OFF_TIMEOUT, 5 * 60 * 1000);
+        mSource.moveToForeground(START + 2000, OTHER);
+        assertFalse(apply(START + 3000));
+        assertEquals(5 * 60 * 1000, mCache.get().screenOffTimeout);
+
+        // The rule is over, nothing is restored later either
+        mSource.moveToForeground(START + 4000, READER);
+        mSource.moveToForeground(START + 4500, OTHER);
+        assertFalse(apply(START + 5000));
+        assertEquals(5 * 60 * 1000, mCache.get().screenOffTimeout);
+    }
+
+    public void testTimeoutSetBeforeTheRuleIsNotRestored() {
+        mStore.putInt(SettingsStore.TABLE_SYSTEM, Settings.System.SCREEN_OFF_TIMEOUT, -1);
+        setRules(RULES);
+        mSource.moveToForeground(START, NAVIGATION);
+        assertFalse(apply(START + 1000));
+        mSource.moveToForeground(START + 2000, OTHER);
+        assertFalse(apply(START + 3000));
+        assertEquals(-1, mCache.get().screenOffTimeout);
+    }
+
+    private void setRules(String spec) {
+        mPrefs.edit().putString(ForegroundAppReceiver.KEY_APP_RULES, spec).commit();
+    }
+
+    private boolean apply(long now) {
+        return ForegroundAppReceiver.applyRules(mPrefs, mSource, mCache, SAVED_TIMEOUT, now);
+    }
+
+    private void awaitWrites() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mCache.runAfterWrites(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 Shuhrat Dehkanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uz.efir.android.screen;
+
+import junit.framework.TestCase;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Tests {@link TimeoutSchedule} with times passed in, never the real clock.
+ */
+public class TimeoutScheduleTest extends TestCase {
+    private static final int MONDAY = 0;
+    private static final int FRIDAY = 4;
+    private static final int SUNDAY = 6;
+    private static final int FIVE_MINUTES = 5 * 60 * 1000;
+
+    private TimeZone mDefaultTimeZone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(mDefaultTimeZone);
+        super.tearDown();
+    }
+
+    public void testParseWeekdays() {
+        TimeoutSchedule schedule = TimeoutSchedule.parse("12345 09:00-17:00 never");
+        // Minute 0, then a start and an end on each of the five days
+        assertEquals(11, schedule.size());
+        assertEquals(TimeoutSchedule.VALUE_SAVED, schedule.valueAt(minute(MONDAY, 8, 59)));
+        assertEquals(-1, schedule.valueAt(minute(MONDAY, 9, 0)));
+        assertEquals(-1, schedule.valueAt(minute(FRIDAY, 16, 59)));
+        assertEquals(TimeoutSchedule.VALUE_SAVED, schedule.valueAt(minute(FRIDAY, 17, 0)));
+        assertEquals(TimeoutSchedule.VALUE_SAVED, schedule.valueAt(minute(SUNDAY, 12, 0)));
+    }
+
+    public void testParseMinutesAndSeveralRules() {
+        TimeoutSchedule schedule = TimeoutSchedule.parse(" 1 9-10 5 ;; 2 09:30-10:00 never ");
+        assertEquals(FIVE_MINUTES, schedule.valueAt(minute(MONDAY, 9, 30)));
+        assertEquals(-1, schedule.valueAt(minute(MONDAY + 1, 9, 30)));
+        assertEquals(TimeoutSchedule.VALUE_SAVED, schedule.valueAt(minute(MONDAY + 1, 10, 0)));
+    }
+
+    public void testParseEmpty() {
+        assertTrue(TimeoutSchedule.parse(null).isEmpty());
+        assertTrue(TimeoutSchedule.parse("  ").isEmpty());
+        TimeoutSchedule schedule = TimeoutSchedule.parse("");
+        assertEquals(-1, schedule.minutesUntilNextTransition(minute(MONDAY, 12, 0)));
+        assertEquals(-1, schedule.nextTransitionMillis(at(2013, Calendar.SEPTEMBER, 2, 12, 0)));
+    }
+
+    public void testParseRejectsBadRules() {
+        String[] specs = {
+            "8 09:00-17:00 never",
+            "0 09:00-17:00 never",
+            "1 09:00 never",
+            "1 09:00-17:00",
+            "1 25:00-26:00 5",
+            "1 09:60-10:00 5",
+            "1 09:00-10:00 0",
+            "1 09:00-10:00 soon",
+            // Overflows an int of milliseconds
+            "1 09:00-10:00 80000"
+        };
+        for (String spec : specs) {
+            try {
+                TimeoutSchedule.parse(spec);
+                fail("Accepted " + spec);
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+    }
+
+    public void testOverlapEarlierRuleWins() {
+        TimeoutSchedule schedule = TimeoutSchedule.parse("1 09:00-12:00 never; 1 10:00-14:00 5");
+        assertEquals(-1, schedule.valueAt(minute(MONDAY, 9, 0)));
+        assertEquals(-1, schedule.valueAt(minute(MONDAY, 11, 59)));
+        assertEquals(FIVE_MINUTES, schedule.valueAt(minute(MONDAY, 12, 0)));
+        assertEquals(TimeoutSchedule.VALUE_SAVED, schedule.valueAt(minute(MONDAY, 14, 0)));
+    }
+
+    public void testAdjacentRulesWithTheSameValueMerge() {
+        TimeoutSchedule schedule = TimeoutSchedule.parse("1 09:00-10:00 5; 1 10:00-11:00 5");
+        assertEquals(3, schedule.size());
+        assertEquals(120, schedule.minutesUntilNextTransition(minute(MONDAY, 9, 0)));
+    }
+
+    public void testPastMidnight() {
+        TimeoutSchedule schedule = TimeoutSchedule.parse("1 22:00-06:00 never");
+        assertEquals(TimeoutSchedule.VALUE_SAVED, schedule.valueAt(minute(MONDAY, 21, 59)));
+        assertEquals(-1, schedule.valueAt(minute(MONDAY, 23, 0)));
+        assertEquals(-1, schedule.valueAt(minute(MONDAY + 1, 5, 59)));
+        assertEquals(TimeoutSchedule.VALUE_SAVED, schedule.valueAt(minute(MONDAY + 1, 6, 0)));
+        assertEquals(7 * 60, schedule.minutesUntilNextTransition(minute(MONDAY, 23, 0)));
+    }
+
+    public void testSundayNightWrapsIntoMonday() {
+        TimeoutSchedule schedule = TimeoutSchedule.parse("7 22:00-02:00 never");
+        assertEquals(-1, schedule.valueAt(minute(SUNDAY, 23, 0)));
+        assertEquals(-1, schedule.valueAt(minute(MONDAY, 1, 59)));
+        assertEquals(TimeoutSchedule.VALUE_SAVED, schedule.valueAt(minute(MONDAY, 2, 0)));
+        // The week ends and starts with "never", that is no change
+        assertEquals(3 * 60, schedule.minutesUntilNextTransition(minute(SUNDAY, 23, 0)));
+        assertEquals(60, schedule.minutesUntilNextTransition(minute(MONDAY, 1, 0)));
+        assertEquals(20 * 60, schedule.minutesUntilNextTransition(minute(SUNDAY, 2, 0)));
+    }
+
+    public void testMinuteOfWeek() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(at(2013, Calendar.SEPTEMBER, 2, 0, 0)); // Monday
+        assertEquals(0, TimeoutSchedule.minuteOfWeek(calendar));
+        calendar.setTimeInMillis(at(2013, Calendar.SEPTEMBER, 8, 23, 59)); // Sunday
+        assertEquals(TimeoutSchedule.MINUTES_PER_WEEK - 1, TimeoutSchedule.minuteOfWeek(calendar));
+    }
+
+    public void testAtFixedInstants() {
+        TimeoutSchedule schedule = TimeoutSchedule.parse("12345 09:00-17:00 never");
+        long mondayMorning = at(2013, Calendar.SEPTEMBER, 2, 8, 30);
+        assertEquals(TimeoutSchedule.VALUE_SAVED, schedule.valueAt(mondayMorning));
+        assertEquals(at(2013, Calendar.SEPTEMBER, 2, 9, 0), schedule.nextTransitionMillis(mondayMorning));
+
+        // Seconds are dropped, the transition is on the minute
+        long mondayNoon = at(2013, Calendar.SEPTEMBER, 2, 12, 0) + 42 * 1000;
+        assertEquals(-1, schedule.valueAt(mondayNoon));
+        assertEquals(at(2013, Calendar.SEPTEMBER, 2, 17, 0), schedule.nextTransitionMillis(mondayNoon));
+
+        // On a transition the next one is returned, not the same
+        long mondayEvening = at(2013, Calendar.SEPTEMBER, 2, 17, 0);
+        assertEquals(at(2013, Calendar.SEPTEMBER, 3, 9, 0), schedule.nextTransitionMillis(mondayEvening));
+
+        // Friday evening waits for Monday morning
+        long fridayEvening = at(2013, Calendar.SEPTEMBER, 6, 18, 0);
+        assertEquals(at(2013, Calendar.SEPTEMBER, 9, 9, 0), schedule.nextTransitionMillis(fridayEvening));
+    }
+
+    public void testNextTransitionAcrossDstEnd() {
+        // Clocks went back from 03:00 to 02:00 on Sunday, October 27 2013
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+        TimeoutSchedule schedule = TimeoutSchedule.parse("7 09:00-17:00 never");
+        long saturday = at(2013, Calendar.OCTOBER, 26, 12, 0);
+        long expected = at(2013, Calendar.OCTOBER, 27, 9, 0);
+        assertEquals(expected, schedule.nextTransitionMillis(saturday));
+        assertEquals(-1, schedule.valueAt(expected));
+    }
+
+    public void testNextTransitionAcrossDstStart() {
+        // Clocks went forward from 02:00 to 03:00 on Sunday, March 31 2013
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+        TimeoutSchedule schedule = TimeoutSchedule.parse("7 09:00-17:00 never");
+        long saturday = at(2013, Calendar.MARCH, 30, 12, 0);
+        long expected = at(2013, Calendar.MARCH, 31, 9, 0);
+        assertEquals(expected, schedule.nextTransitionMillis(saturday));
+        assertEquals(-1, schedule.valueAt(expected));
+    }
+
+    private static int minute(int day, int hour, int minute) {
+        return day * TimeoutSchedule.MINUTES_PER_DAY + hour * 60 + minute;
+    }
+
+    /**
+     * @return the wall clock time in the default time zone.
+     */
+    private static long at(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+}